@@ -0,0 +1,117 @@
+package no.idporten.userservice.api.admin;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.enums.ParameterIn;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.ExampleObject;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.Pattern;
+import no.idporten.userservice.api.ApiException;
+import no.idporten.userservice.data.DeadLetterStream;
+import no.idporten.userservice.logging.audit.AuditID;
+import no.idporten.userservice.logging.audit.AuditMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static no.idporten.userservice.api.admin.AdminApiController.errorResponseExample;
+
+/**
+ * API for inspecting and replaying login updates moved to the dead-letter stream. Only available with caching, as login
+ * updates only go through Redis then.
+ */
+@Tag(name = "admin-api", description = "User Service Admin API")
+@ApiResponses(value = {
+        @ApiResponse(responseCode = "400", description = "Invalid request", content = @Content(examples = {
+                @ExampleObject(description = "Error response", value = errorResponseExample)
+        })),
+        @ApiResponse(responseCode = "401", description = "Invalid token", content = @Content(examples = {
+                @ExampleObject(description = "Error response", value = errorResponseExample)
+        })),
+        @ApiResponse(responseCode = "403", description = "Insufficient scope", content = @Content(examples = {
+                @ExampleObject(description = "Error response", value = errorResponseExample)
+        })),
+        @ApiResponse(responseCode = "500", description = "Server error", content = @Content(examples = {
+                @ExampleObject(description = "Error response", value = errorResponseExample)
+        }))
+})
+@Validated
+@RestController
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class DeadLetterApiController {
+
+    private final DeadLetterStream deadLetterStream;
+
+    public DeadLetterApiController(DeadLetterStream deadLetterStream) {
+        this.deadLetterStream = deadLetterStream;
+    }
+
+    @Operation(
+            summary = "List dead letters",
+            description = "List the oldest login updates moved to the dead-letter stream after failing too many times",
+            tags = {"admin-api"},
+            security = @SecurityRequirement(name = "access_token"),
+            parameters = {
+                    @Parameter(in = ParameterIn.QUERY, name = "count", description = "Maximum number of dead letters returned")
+            })
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Dead letters and the total number of dead letters")
+    })
+    @PreAuthorize("hasAnyAuthority('SCOPE_idporteninternal:user.read','SCOPE_idporteninternal:user.write')")
+    @AuditMessage(AuditID.ADMIN_DEAD_LETTERS_READ)
+    @GetMapping(path = "/admin/v1/login-updates/dead-letters", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<DeadLettersResource> listDeadLetters(@Min(1) @Max(1000) @RequestParam(name = "count", defaultValue = "100") int count) {
+        return ResponseEntity.ok(new DeadLettersResource(deadLetterStream.size(),
+                deadLetterStream.list(count).stream().map(DeadLetterApiController::convert).toList()));
+    }
+
+    @Operation(
+            summary = "Replay a dead letter",
+            description = "Add the login update to the stream again, and remove it from the dead-letter stream",
+            tags = {"admin-api"},
+            security = @SecurityRequirement(name = "access_token"),
+            parameters = {
+                    @Parameter(in = ParameterIn.PATH, name = "id", required = true, description = "Dead letter id")
+            })
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "204", description = "Login update is replayed"),
+            @ApiResponse(responseCode = "404", description = "Dead letter is not found"),
+            @ApiResponse(responseCode = "409", description = "Dead letter holds a login update that can not be read, and can not be replayed")
+    })
+    @PreAuthorize("hasAuthority('SCOPE_idporteninternal:user.write')")
+    @AuditMessage(AuditID.ADMIN_DEAD_LETTER_REPLAYED)
+    @PostMapping(path = "/admin/v1/login-updates/dead-letters/{id}/.replay")
+    public ResponseEntity<Void> replayDeadLetter(@Pattern(regexp = "^\\d+-\\d+$", message = "Invalid dead letter id in path") @PathVariable("id") String id) {
+        if (!deadLetterStream.replay(RecordId.of(id))) {
+            throw new ApiException("invalid_request", "Dead letter not found.", HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    private static DeadLetterResource convert(MapRecord<String, Object, Object> deadLetter) {
+        Map<String, String> loginUpdate = new LinkedHashMap<>();
+        deadLetter.getValue().forEach((field, value) -> loginUpdate.put(String.valueOf(field), String.valueOf(value)));
+        String sourceStream = loginUpdate.remove(DeadLetterStream.SOURCE_STREAM);
+        String sourceId = loginUpdate.remove(DeadLetterStream.SOURCE_ID);
+        String deliveries = loginUpdate.remove(DeadLetterStream.DELIVERIES);
+        String reason = loginUpdate.remove(DeadLetterStream.REASON);
+        return new DeadLetterResource(deadLetter.getId().getValue(), sourceStream, sourceId,
+                deliveries == null ? 0 : Long.parseLong(deliveries), reason, loginUpdate);
+    }
+
+}
@@ -0,0 +1,35 @@
+package no.idporten.userservice.api.admin;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * A login update moved to the dead-letter stream.
+ */
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeadLetterResource {
+
+    private String id;
+
+    @JsonProperty("source_stream")
+    private String sourceStream;
+
+    @JsonProperty("source_id")
+    private String sourceId;
+
+    private long deliveries;
+
+    private String reason;
+
+    @JsonProperty("login_update")
+    private Map<String, String> loginUpdate;
+
+}
@@ -0,0 +1,22 @@
+package no.idporten.userservice.api.admin;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The oldest dead letters, and the total number of dead letters.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeadLettersResource {
+
+    private long size;
+
+    private List<DeadLetterResource> records = new ArrayList<>();
+
+}
@@ -7,5 +7,6 @@ public class RedisStreamConstants {
 
     // Streamnames
     public final static String UPDATE_LAST_LOGIN_STREAM = "update-last-login";
+    public final static String UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM = "update-last-login:dead-letter";
 
 }
@@ -1,67 +1,94 @@
 package no.idporten.userservice.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import no.idporten.userservice.data.ConsumerNameProvider;
+import no.idporten.userservice.data.DatabaseCircuitBreaker;
+import no.idporten.userservice.data.UpdateEidLoginDispatcher;
+import no.idporten.userservice.data.UpdateEidLoginMessagesConsumer;
+import no.idporten.userservice.data.UpdateEidLoginStreamReader;
 import no.idporten.userservice.data.message.UpdateEidMessage;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.RedisSystemException;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.stream.Consumer;
 import org.springframework.data.redis.connection.stream.ObjectRecord;
 import org.springframework.data.redis.connection.stream.ReadOffset;
 import org.springframework.data.redis.connection.stream.StreamOffset;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.stream.StreamListener;
 import org.springframework.data.redis.stream.StreamMessageListenerContainer;
-import org.springframework.data.redis.stream.Subscription;
-
-import java.time.Duration;
 
 import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
-import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
 
 @Slf4j
 @Configuration
 @ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
 public class SubscriptionConfig {
 
-    private Subscription subscription;
-
+    /**
+     * Closed on shutdown, letting the records being handled finish so they are acknowledged.
+     */
     @Bean
-    public Subscription subscription(RedisConnectionFactory connectionFactory, StreamListener<String, ObjectRecord<String, UpdateEidMessage>> streamListener, RedisTemplate<String, String> updateEidCache) {
-        try {
-            updateEidCache.afterPropertiesSet();
-            updateEidCache.opsForStream().createGroup(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP);
-        } catch (RedisSystemException e) {
-            log.info("STREAM - Redis group already exists, skipping Redis group creation: {}", UPDATE_LAST_LOGIN_GROUP);
-        }
+    @ConditionalOnProperty(name = "digdir.streams.update-last-login.batch-enabled", havingValue = "false")
+    public UpdateEidLoginDispatcher updateEidLoginDispatcher(UpdateEidLoginMessagesConsumer messagesConsumer,
+                                                             UpdateLastLoginStreamProperties streamProperties, MeterRegistry meterRegistry) {
+        return new UpdateEidLoginDispatcher(messagesConsumer, streamProperties.getMaxInFlight(), meterRegistry);
+    }
 
-        var streamOffset = StreamOffset.create(
-                UPDATE_LAST_LOGIN_STREAM, ReadOffset.lastConsumed()
-        );
+    /**
+     * Handles records one by one, up to max-in-flight at once, only used when batch mode is turned off. See
+     * {@link UpdateEidLoginStreamReader}. The container holds one subscription per partition, and is stopped on shutdown.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "digdir.streams.update-last-login.batch-enabled", havingValue = "false")
+    public StreamMessageListenerContainer<String, ObjectRecord<String, UpdateEidMessage>> updateEidListenerContainer(
+            RedisConnectionFactory connectionFactory, UpdateEidLoginMessagesConsumer messagesConsumer, UpdateEidLoginDispatcher dispatcher,
+            RedisTemplate<String, String> updateEidCache, UpdateLastLoginStreamProperties streamProperties, DatabaseCircuitBreaker circuitBreaker) {
+        updateEidCache.afterPropertiesSet();
+        messagesConsumer.createConsumerGroup();
 
         var options = StreamMessageListenerContainer.StreamMessageListenerContainerOptions.builder()
-                .pollTimeout(Duration.ofMillis(100))
+                .pollTimeout(streamProperties.getPollTimeout())
                 .targetType(UpdateEidMessage.class)
-                .batchSize(1)
+                .batchSize(streamProperties.getBatchSize())
                 .build();
 
         var container = StreamMessageListenerContainer
                 .create(connectionFactory, options);
 
-        var streamReadRequest = StreamMessageListenerContainer.StreamReadRequest
-                .builder(streamOffset)
-                .consumer(Consumer.from(UPDATE_LAST_LOGIN_GROUP, ConsumerNameProvider.getConsumerName()))
-                .cancelOnError(t -> false) // skip errors
-                .autoAcknowledge(false)
-                .build();
+        for (String streamKey : streamProperties.streamKeys()) {
+            var streamOffset = StreamOffset.create(
+                    streamKey, ReadOffset.lastConsumed()
+            );
 
-       subscription = container.register(streamReadRequest, streamListener);
+            var streamReadRequest = StreamMessageListenerContainer.StreamReadRequest
+                    .builder(streamOffset)
+                    .consumer(Consumer.from(UPDATE_LAST_LOGIN_GROUP, ConsumerNameProvider.getConsumerName()))
+                    .cancelOnError(t -> false) // skip errors
+                    .errorHandler(t -> {
+                        // the container keeps polling, and picks up the group once it is recreated. Failures handling
+                        // a record are handled by the dispatcher
+                        if (!messagesConsumer.recreateConsumerGroupIfMissing(t)) {
+                            log.error("STREAM - Failed to read from stream {}", streamKey, t);
+                        }
+                    })
+                    .autoAcknowledge(false)
+                    .build();
+
+            container.register(streamReadRequest, dispatcher);
+        }
 
         container.start();
-        return subscription;
+        // new records wait in the stream while the database is down, instead of failing
+        circuitBreaker.addListener(state -> {
+            if (state == DatabaseCircuitBreaker.State.OPEN) {
+                container.stop();
+            } else if (state == DatabaseCircuitBreaker.State.CLOSED) {
+                container.start();
+            }
+        });
+        return container;
     }
 
 }
@@ -0,0 +1,186 @@
+package no.idporten.userservice.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
+
+@Configuration
+@Data
+@ConfigurationProperties(prefix = "digdir.streams.update-last-login")
+public class UpdateLastLoginStreamProperties {
+
+    /**
+     * Reads and processes records in batches, acknowledging each batch in one command. The listener container handling
+     * one record at a time is used when turned off.
+     */
+    private boolean batchEnabled = true;
+
+    /**
+     * Maximum number of records read from the stream in one round trip.
+     */
+    private int batchSize = 100;
+
+    /**
+     * How long a read waits for new records. Must be shorter than the Redis command timeout.
+     */
+    private Duration pollTimeout = Duration.ofMillis(100);
+
+    /**
+     * Number of streams the login updates are spread over by user, so they can live on different Redis shards. The first
+     * partition is the update-last-login stream, so going up from 1 keeps reading records already there. Going down
+     * leaves the records in the dropped partitions unread.
+     */
+    private int partitions = 1;
+
+    /**
+     * Approximate maximum number of records kept in each partition. The oldest records are dropped when a partition is
+     * full, even if they are not handled yet. 0 turns the limit off.
+     */
+    private long maxLength = 1_000_000;
+
+    /**
+     * How often records handled by the consumer group are trimmed from the partitions.
+     */
+    private Duration trimInterval = Duration.ofMinutes(1);
+
+    /**
+     * Share of max-length the unhandled backlog of a partition can reach before it is logged as a warning.
+     */
+    private double backlogWarningRatio = 0.8;
+
+    /**
+     * How long a failed record is left pending before it is retried. Doubled for every delivery, up to max-retry-backoff.
+     */
+    private Duration retryBackoff = Duration.ofSeconds(10);
+
+    /**
+     * Longest wait between retries of a failed record.
+     */
+    private Duration maxRetryBackoff = Duration.ofHours(1);
+
+    /**
+     * Number of deliveries before a record still failing is moved to the dead-letter stream.
+     */
+    private int maxDeliveries = 10;
+
+    /**
+     * How often the length, pending records and lag of the partitions are sampled for metrics.
+     */
+    private Duration metricsInterval = Duration.ofSeconds(15);
+
+    /**
+     * Maximum number of records handled at once when batch mode is turned off. Records of the same user are always
+     * handled one at a time. Should be below the size of the database connection pool.
+     */
+    private int maxInFlight = 4;
+
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    private Spool spool = new Spool();
+
+    private DirectFallback directFallback = new DirectFallback();
+
+    /**
+     * The keys of all partitions.
+     */
+    public List<String> streamKeys() {
+        return IntStream.range(0, partitions).mapToObj(UpdateLastLoginStreamProperties::streamKey).toList();
+    }
+
+    /**
+     * The key of the partition holding the login updates of the user. Updates of a user always go to the same partition.
+     */
+    public String streamKey(UUID userId) {
+        return streamKey(Math.floorMod(userId.hashCode(), partitions));
+    }
+
+    /**
+     * How long a record delivered the given number of times is left pending before it is retried.
+     */
+    public Duration retryBackoff(long deliveries) {
+        long doublings = Math.clamp(deliveries - 1, 0, 30);
+        Duration backoff = retryBackoff.multipliedBy(1L << doublings);
+        return backoff.compareTo(maxRetryBackoff) > 0 ? maxRetryBackoff : backoff;
+    }
+
+    private static String streamKey(int partition) {
+        return partition == 0 ? UPDATE_LAST_LOGIN_STREAM : UPDATE_LAST_LOGIN_STREAM + ":" + partition;
+    }
+
+    @Data
+    public static class CircuitBreaker {
+
+        /**
+         * Number of failing or slow database calls in a row before the stream consumers are paused.
+         */
+        private int failureThreshold = 5;
+
+        /**
+         * Database calls slower than this count as failing.
+         */
+        private Duration slowCallThreshold = Duration.ofSeconds(5);
+
+        /**
+         * How long the stream consumers are paused before the database is checked again.
+         */
+        private Duration openDuration = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Spool {
+
+        /**
+         * Buffers login updates in a local file while Redis is unavailable, instead of failing the login.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Directory of the spool file. Should survive a restart of the container, like an emptyDir volume.
+         */
+        private String directory = System.getProperty("java.io.tmpdir");
+
+        /**
+         * Size of the spool file. Login updates arriving while it is full fail as without the spool.
+         */
+        private DataSize size = DataSize.ofMegabytes(16);
+
+        /**
+         * How often spooled login updates are moved to the stream, or to the database while Redis is still unavailable.
+         */
+        private Duration drainInterval = Duration.ofSeconds(1);
+    }
+
+    @Data
+    public static class DirectFallback {
+
+        /**
+         * Writes login updates to the database directly, bypassing the stream, while the stream lags behind.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Lag of the stream, the age of the oldest record not yet delivered to the consumers, before login updates are
+         * written directly. They go through the stream again once the lag is below half of this.
+         */
+        private Duration maxLag = Duration.ofSeconds(30);
+
+        /**
+         * How long a login update waits for others to be written in the same batch.
+         */
+        private Duration flushDelay = Duration.ofMillis(20);
+
+        /**
+         * Maximum number of login updates waiting to be written. Login updates go through the stream when it is full.
+         */
+        private int queueSize = 10_000;
+    }
+
+}
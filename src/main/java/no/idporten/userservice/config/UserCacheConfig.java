@@ -1,13 +1,18 @@
 package no.idporten.userservice.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import no.idporten.userservice.data.IDPortenUser;
+import no.idporten.userservice.data.cache.CompressingRedisSerializer;
+import no.idporten.userservice.data.cache.IDPortenUserRedisSerializer;
+import no.idporten.userservice.data.cache.UserCacheInvalidationBus;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.serializer.JacksonJsonRedisSerializer;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 @Slf4j
@@ -16,15 +21,18 @@ import org.springframework.data.redis.serializer.StringRedisSerializer;
 public class UserCacheConfig {
 
     @Bean("idportenUserCache")
-    public RedisTemplate<String, IDPortenUser> idportenUserCache(RedisConnectionFactory rcf) {
+    public RedisTemplate<String, IDPortenUser> idportenUserCache(RedisConnectionFactory rcf, UserCacheProperties userCacheProperties, MeterRegistry meterRegistry) {
         RedisTemplate<String, IDPortenUser> template = new RedisTemplate<>();
         template.setConnectionFactory(rcf);
-        JacksonJsonRedisSerializer<IDPortenUser> jsonRedisSerializer = new JacksonJsonRedisSerializer<>(IDPortenUser.class);
+        UserCacheProperties.Compression compression = userCacheProperties.getCompression();
+        CompressingRedisSerializer<IDPortenUser> userRedisSerializer = new CompressingRedisSerializer<>(
+                new IDPortenUserRedisSerializer(userCacheProperties.getSerializer()),
+                compression.isEnabled(), (int) compression.getThreshold().toBytes(), meterRegistry);
 
         template.setKeySerializer(new StringRedisSerializer());
-        template.setValueSerializer(jsonRedisSerializer);
+        template.setValueSerializer(userRedisSerializer);
         template.setHashKeySerializer(new StringRedisSerializer());
-        template.setHashValueSerializer(jsonRedisSerializer);
+        template.setHashValueSerializer(userRedisSerializer);
 
         return template;
     }
@@ -39,6 +47,14 @@ public class UserCacheConfig {
         return getStringStringRedisTemplate(rcf);
     }
 
+    @Bean
+    public RedisMessageListenerContainer userCacheInvalidationListenerContainer(RedisConnectionFactory rcf, UserCacheInvalidationBus userCacheInvalidationBus) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(rcf);
+        container.addMessageListener(userCacheInvalidationBus, new ChannelTopic(UserCacheInvalidationBus.CHANNEL));
+        return container;
+    }
+
     private RedisTemplate<String, String> getStringStringRedisTemplate(RedisConnectionFactory rcf) {
         RedisTemplate<String, String> template = new RedisTemplate<>();
         template.setConnectionFactory(rcf);
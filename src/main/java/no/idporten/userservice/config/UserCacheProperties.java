@@ -0,0 +1,122 @@
+package no.idporten.userservice.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@Configuration
+@Data
+@ConfigurationProperties(prefix = "digdir.caching")
+public class UserCacheProperties {
+
+    /**
+     * Format of users written to Redis. Both formats are read, so switching back and forth is safe between versions
+     * reading binary. Versions from before the binary format fail on binary users, which are not replaced by reads, so
+     * only enable binary once no such version can be deployed.
+     */
+    private Serializer serializer = Serializer.JSON;
+
+    private Compression compression = new Compression();
+
+    private NearCache nearCache = new NearCache();
+
+    private SingleFlight singleFlight = new SingleFlight();
+
+    private NegativeCache negativeCache = new NegativeCache();
+
+    private ClientTracking clientTracking = new ClientTracking();
+
+    public enum Serializer {
+        JSON, BINARY
+    }
+
+    @Data
+    public static class Compression {
+
+        /**
+         * Compresses users written to Redis above the threshold. Compressed users are always read.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Users smaller than this are written uncompressed.
+         */
+        private DataSize threshold = DataSize.ofBytes(512);
+    }
+
+    @Data
+    public static class NearCache {
+
+        /**
+         * Turns the in-process cache in front of Redis on/off.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Maximum number of users held per pod.
+         */
+        private long maximumSize = 10_000;
+
+        /**
+         * Upper bound on how long a user is served from the pod without asking Redis.
+         */
+        private Duration timeToLive = Duration.ofSeconds(10);
+
+        /**
+         * Maximum number of keys sent to the other pods in one invalidation message.
+         */
+        private int invalidationBatchSize = 500;
+    }
+
+    @Data
+    public static class ClientTracking {
+
+        /**
+         * Reads users through Redis client side caching (RESP3 client tracking) instead of the near cache.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Maximum number of users held per pod.
+         */
+        private long maximumSize = 10_000;
+    }
+
+    @Data
+    public static class SingleFlight {
+
+        /**
+         * Lets the pods coordinate loading of a user missing in the cache through a lock in Redis.
+         */
+        private boolean distributedLock = false;
+
+        /**
+         * How long the lock is held before it expires.
+         */
+        private Duration lockTimeout = Duration.ofSeconds(2);
+
+        /**
+         * How long a pod not holding the lock waits for the user to show up in the cache before loading it itself.
+         */
+        private Duration lockWait = Duration.ofMillis(500);
+    }
+
+    @Data
+    public static class NegativeCache {
+
+        /**
+         * Remembers person identifiers without a user, so repeated searches for them do not go to the database.
+         */
+        private boolean enabled = true;
+
+        /**
+         * How long a person identifier is remembered as not having a user.
+         */
+        private Duration timeToLive = Duration.ofSeconds(30);
+    }
+
+}
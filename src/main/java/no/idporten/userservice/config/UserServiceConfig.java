@@ -1,6 +1,10 @@
 package no.idporten.userservice.config;
 
 import no.idporten.userservice.data.*;
+import no.idporten.userservice.data.cache.NegativeUserCache;
+import no.idporten.userservice.data.cache.TrackingUserCache;
+import no.idporten.userservice.data.cache.UserLoadCoalescer;
+import no.idporten.userservice.data.cache.UserNearCache;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -14,14 +18,17 @@ public class UserServiceConfig {
     public UserService cachedUserService(RedisTemplate<String,
             IDPortenUser> idportenUserCache, RedisTemplate<String,
             String> uuidToUseridCache, RedisTemplate<String, String> updateEidCache,
-            DirectUserService userService) {
-        return new CachedUserService(idportenUserCache, uuidToUseridCache, updateEidCache, userService);
+            DirectUserService userService, UserNearCache nearCache, TrackingUserCache trackingCache,
+            UserLoadCoalescer loadCoalescer, NegativeUserCache negativeCache, UpdateLastLoginStreamProperties streamProperties,
+            LoginUpdateSpool loginUpdateSpool, LoginUpdateWriteBehind loginUpdateWriteBehind) {
+        return new CachedUserService(idportenUserCache, uuidToUseridCache, updateEidCache, userService, nearCache, trackingCache,
+                loadCoalescer, negativeCache, streamProperties, loginUpdateSpool, loginUpdateWriteBehind);
     }
 
     @Bean(name="userService")
     @ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "false")
-    public UserService directUserService(UserRepository userRepository) {
-        return new DirectUserService(userRepository);
+    public UserService directUserService(UserRepository userRepository, LoginRepository loginRepository) {
+        return new DirectUserService(userRepository, loginRepository);
     }
 
 }
@@ -2,17 +2,15 @@ package no.idporten.userservice.data;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.data.cache.NegativeUserCache;
+import no.idporten.userservice.data.cache.UserCacheWriter;
 import no.idporten.userservice.data.event.*;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.event.EventListener;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.event.TransactionalEventListener;
 
-import java.util.concurrent.TimeUnit;
-
 import static org.springframework.transaction.event.TransactionPhase.AFTER_COMMIT;
 
 @Slf4j
@@ -21,46 +19,45 @@ import static org.springframework.transaction.event.TransactionPhase.AFTER_COMMI
 @ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
 public class CacheUpdater {
 
-    private final RedisTemplate<String, IDPortenUser> idportenUserCache;
-    private final RedisTemplate<String, String> uuidToUseridCache;
-
-    @Value("${digdir.caching.time_to_live_in_days}")
-    private String ttl;
+    private final UserCacheWriter cacheWriter;
+    private final NegativeUserCache negativeCache;
 
     @TransactionalEventListener(phase = AFTER_COMMIT)
     @Async
     public void handleUserCreatedEvent(UserCreatedEvent userCreatedEvent) {
-        idportenUserCache.opsForValue().set(userCreatedEvent.idPortenUser.getPid(), userCreatedEvent.idPortenUser, Long.parseLong(ttl), TimeUnit.DAYS);
-        uuidToUseridCache.opsForValue().set(userCreatedEvent.idPortenUser.getId().toString(), userCreatedEvent.idPortenUser.getPid(), Long.parseLong(ttl), TimeUnit.DAYS);
+        IDPortenUser user = userCreatedEvent.idPortenUser;
+        cacheWriter.submit(cacheWriter.setUser(user), cacheWriter.setUuid(user.getId(), user.getPid()));
+        negativeCache.markPresent(user.getPid());
     }
 
-    @EventListener
+    @TransactionalEventListener(phase = AFTER_COMMIT, fallbackExecution = true)
     @Async
     public void handleUserUpdatedEvent(UserUpdatedEvent userUpdatedEvent) {
-        idportenUserCache.opsForValue().set(userUpdatedEvent.idPortenUser.getPid(), userUpdatedEvent.idPortenUser, Long.parseLong(ttl), TimeUnit.DAYS);
-        uuidToUseridCache.opsForValue().set(userUpdatedEvent.idPortenUser.getId().toString(), userUpdatedEvent.idPortenUser.getPid(), Long.parseLong(ttl), TimeUnit.DAYS);
+        IDPortenUser user = userUpdatedEvent.idPortenUser;
+        cacheWriter.submit(cacheWriter.setUser(user), cacheWriter.setUuid(user.getId(), user.getPid()));
     }
 
+    /**
+     * Only fills in users missing in the cache, changes are written by the other handlers.
+     */
     @EventListener
     @Async
     public void handleUserReadEvent(UserReadEvent userReadEvent) {
-        idportenUserCache.opsForValue().set(userReadEvent.idPortenUser.getPid(), userReadEvent.idPortenUser, Long.parseLong(ttl), TimeUnit.DAYS);
-        uuidToUseridCache.opsForValue().set(userReadEvent.idPortenUser.getId().toString(), userReadEvent.idPortenUser.getPid(), Long.parseLong(ttl), TimeUnit.DAYS);
+        IDPortenUser user = userReadEvent.idPortenUser;
+        cacheWriter.submit(cacheWriter.setUserIfAbsent(user), cacheWriter.setUuidIfAbsent(user.getId(), user.getPid()));
     }
 
-    @EventListener
+    @TransactionalEventListener(phase = AFTER_COMMIT, fallbackExecution = true)
     @Async
     public void handleUserDeletedEvent(UserDeletedEvent userDeletedEvent) {
-        idportenUserCache.opsForValue().getAndDelete(userDeletedEvent.personIdentification);
-        uuidToUseridCache.opsForValue().getAndDelete(userDeletedEvent.userID.toString());
+        cacheWriter.submit(cacheWriter.deleteUser(userDeletedEvent.personIdentification), cacheWriter.deleteUuid(userDeletedEvent.userID));
     }
 
-    @EventListener
+    @TransactionalEventListener(phase = AFTER_COMMIT, fallbackExecution = true)
     @Async
     public void handleUserPidUpdatedEvent(UserPidUpdatedEvent userPidUpdated) {
-        idportenUserCache.opsForValue().getAndDelete(userPidUpdated.oldPid);
-        idportenUserCache.opsForValue().set(userPidUpdated.idPortenUser.getPid(), userPidUpdated.idPortenUser, Long.parseLong(ttl), TimeUnit.DAYS);
-        uuidToUseridCache.opsForValue().set(userPidUpdated.idPortenUser.getId().toString(), userPidUpdated.idPortenUser.getPid(), Long.parseLong(ttl), TimeUnit.DAYS);
+        IDPortenUser user = userPidUpdated.idPortenUser;
+        cacheWriter.submit(cacheWriter.deleteUser(userPidUpdated.oldPid), cacheWriter.setUser(user), cacheWriter.setUuid(user.getId(), user.getPid()));
     }
 
 }
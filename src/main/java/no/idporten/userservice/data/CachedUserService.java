@@ -1,12 +1,24 @@
 package no.idporten.userservice.data;
 
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import no.idporten.userservice.data.cache.NegativeUserCache;
+import no.idporten.userservice.data.cache.TrackingUserCache;
+import no.idporten.userservice.data.cache.UserLoadCoalescer;
+import no.idporten.userservice.data.cache.UserNearCache;
 import no.idporten.userservice.data.message.UpdateEidMessage;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisStreamCommands.XAddOptions;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.connection.stream.ObjectRecord;
 import org.springframework.data.redis.connection.stream.StreamRecords;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -14,8 +26,8 @@ import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Supplier;
 
-import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -23,49 +35,121 @@ import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LO
 @ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
 public class CachedUserService implements UserService {
 
+    /**
+     * Looks up uuid -> pid -> user in one round trip. The pid key is not declared, so this is only used with standalone
+     * Redis, see {@link #detectRedisCluster()}.
+     */
+    static final RedisScript<IDPortenUser> FIND_USER_BY_UUID = new DefaultRedisScript<>("""
+            local pid = redis.call('GET', KEYS[1])
+            if not pid then
+                return false
+            end
+            return redis.call('GET', pid)
+            """, IDPortenUser.class);
+
     private final RedisTemplate<String, IDPortenUser> idportenUserCache;
     private final RedisTemplate<String, String> uuidToUseridCache;
     private final RedisTemplate<String, String> updateEidCache;
 
     private final DirectUserService userService;
 
+    private final UserNearCache nearCache;
+
+    private final TrackingUserCache trackingCache;
+
+    private final UserLoadCoalescer loadCoalescer;
+
+    private final NegativeUserCache negativeCache;
+
+    private final UpdateLastLoginStreamProperties streamProperties;
+
+    private final LoginUpdateSpool loginUpdateSpool;
+
+    private final LoginUpdateWriteBehind loginUpdateWriteBehind;
+
+    private boolean redisCluster;
+
+    /**
+     * Redis Cluster routes commands by their declared keys, so the user is looked up by uuid with two GETs there.
+     */
+    @PostConstruct
+    void detectRedisCluster() {
+        redisCluster = idportenUserCache.getRequiredConnectionFactory() instanceof LettuceConnectionFactory connectionFactory
+                && connectionFactory.isClusterAware();
+        if (redisCluster) {
+            log.info("Connected to Redis Cluster, users are looked up by uuid in two round trips");
+        }
+    }
+
     @Override
     public IDPortenUser findUser(UUID uuid) {
-        String cachedUser = uuidToUseridCache.opsForValue().get(uuid.toString());
-
+        String cachedUser = nearCache.getPid(uuid);
         if (cachedUser != null) {
             return searchForUser(cachedUser).orElse(null);
         }
 
-        return userService.findUser(uuid);
+        long stamp = nearCache.stamp();
+        IDPortenUser idPortenUser = cachedUser(uuid);
+
+        if (idPortenUser == null) {
+            idPortenUser = load("uuid:" + uuid, () -> cachedUser(uuid), () -> userService.findUser(uuid));
+        }
+
+        nearCache.put(idPortenUser, stamp);
+        return idPortenUser;
+    }
+
+    /**
+     * Users are cached without their previous users, so {@link FetchPlan#HISTORY} is always read from the database.
+     */
+    @Override
+    public IDPortenUser findUser(UUID uuid, FetchPlan fetchPlan) {
+        return fetchPlan == FetchPlan.HISTORY ? userService.findUser(uuid, fetchPlan) : findUser(uuid);
     }
 
     @Override
     public Optional<IDPortenUser> searchForUser(String personIdentifier) {
-        IDPortenUser idPortenUser = idportenUserCache.opsForValue().get(personIdentifier);
+        IDPortenUser nearCachedUser = nearCache.getUser(personIdentifier);
+        if (nearCachedUser != null) {
+            return Optional.of(nearCachedUser);
+        }
+
+        long stamp = nearCache.stamp();
+        IDPortenUser idPortenUser = cachedUser(personIdentifier);
 
         if (idPortenUser == null) {
-            return userService.searchForUser(personIdentifier);
+            idPortenUser = load("pid:" + personIdentifier, () -> cachedUser(personIdentifier),
+                    () -> loadUser(personIdentifier));
         }
 
-        return Optional.of(idPortenUser);
+        nearCache.put(idPortenUser, stamp);
+        return Optional.ofNullable(idPortenUser);
+    }
+
+    @Override
+    public Optional<IDPortenUser> searchForUser(String personIdentifier, FetchPlan fetchPlan) {
+        return fetchPlan == FetchPlan.HISTORY ? userService.searchForUser(personIdentifier, fetchPlan) : searchForUser(personIdentifier);
     }
 
     @Transactional
     @Override
     public IDPortenUser createUser(IDPortenUser idPortenUser) {
+        negativeCache.markPresent(idPortenUser.getPid());
         return userService.createUser(idPortenUser);
     }
 
     @Transactional
     @Override
     public IDPortenUser createStatusUser(IDPortenUser idPortenUser) {
+        negativeCache.markPresent(idPortenUser.getPid());
         return userService.createStatusUser(idPortenUser);
     }
 
     @Override
     public IDPortenUser updateUser(IDPortenUser idPortenUser) {
-        return userService.updateUser(idPortenUser);
+        IDPortenUser updatedUser = userService.updateUser(idPortenUser);
+        nearCache.invalidate(updatedUser.getPid(), updatedUser.getId());
+        return updatedUser;
     }
 
     @Override
@@ -77,11 +161,10 @@ public class CachedUserService implements UserService {
 
         UpdateEidMessage updateEidEvent = new UpdateEidMessage(userUuid, Instant.now().toEpochMilli(), eid.getEidName());
 
-        ObjectRecord<String, UpdateEidMessage> eventRecord = StreamRecords.newRecord()
-                .ofObject(updateEidEvent)
-                .withStreamKey(UPDATE_LAST_LOGIN_STREAM);
-
-        updateEidCache.opsForStream().add(eventRecord);
+        // bypasses the stream while it lags behind, see LoginUpdateWriteBehind
+        if (!loginUpdateWriteBehind.offer(updateEidEvent)) {
+            addToStream(updateEidEvent);
+        }
 
         return IDPortenUser.builder()
                 .pid(user.getPid())
@@ -92,15 +175,106 @@ public class CachedUserService implements UserService {
                 .build();
     }
 
+    /**
+     * Adds the login update to the stream, or to the local spool while Redis is unavailable.
+     */
+    private void addToStream(UpdateEidMessage updateEidEvent) {
+        // do not wait for Redis to time out while it is unavailable, and stay behind the login updates already spooled
+        if ((loginUpdateSpool.isRedisUnavailable() || loginUpdateSpool.isSpooling()) && loginUpdateSpool.append(updateEidEvent)) {
+            return;
+        }
+        ObjectRecord<String, UpdateEidMessage> eventRecord = StreamRecords.newRecord()
+                .ofObject(updateEidEvent)
+                .withStreamKey(streamProperties.streamKey(updateEidEvent.userId()));
+        try {
+            updateEidCache.opsForStream().add(eventRecord, streamProperties.getMaxLength() > 0
+                    ? XAddOptions.maxlen(streamProperties.getMaxLength()).approximateTrimming(true)
+                    : XAddOptions.none());
+            loginUpdateSpool.redisAvailable();
+        } catch (DataAccessException e) {
+            loginUpdateSpool.redisUnavailable(e);
+            if (!loginUpdateSpool.append(updateEidEvent)) {
+                throw e;
+            }
+        }
+    }
+
     @Transactional
     @Override
     public IDPortenUser deleteUser(UUID userUuid) {
-        return userService.deleteUser(userUuid);
+        IDPortenUser deletedUser = userService.deleteUser(userUuid);
+        if (deletedUser != null) {
+            nearCache.invalidate(deletedUser.getPid(), deletedUser.getId());
+        }
+        return deletedUser;
     }
 
     @Override
     public IDPortenUser changePid(String currentPid, String newPid) {
-        return userService.changePid(currentPid, newPid);
+        negativeCache.markPresent(newPid);
+        IDPortenUser newUser = userService.changePid(currentPid, newPid);
+        nearCache.invalidate(currentPid, newUser.getPreviousUser() == null ? null : newUser.getPreviousUser().getId());
+        return newUser;
+    }
+
+    private IDPortenUser cachedUser(String personIdentifier) {
+        return fromRedis(() -> {
+            if (trackingCache.isEnabled()) {
+                return trackingCache.getUser(personIdentifier);
+            }
+            return idportenUserCache.opsForValue().get(personIdentifier);
+        });
+    }
+
+    private IDPortenUser loadUser(String personIdentifier) {
+        boolean redisAvailable = !loginUpdateSpool.isRedisUnavailable();
+        if (redisAvailable && negativeCache.isAbsent(personIdentifier)) {
+            return null;
+        }
+        IDPortenUser user = userService.searchForUser(personIdentifier).orElse(null);
+        if (user == null && redisAvailable) {
+            negativeCache.markAbsent(personIdentifier);
+        }
+        return user;
+    }
+
+    @SuppressWarnings("unchecked")
+    private IDPortenUser cachedUser(UUID uuid) {
+        return fromRedis(() -> {
+            if (trackingCache.isEnabled()) {
+                String personIdentifier = trackingCache.getPid(uuid);
+                return personIdentifier == null ? null : trackingCache.getUser(personIdentifier);
+            }
+            if (redisCluster) {
+                String personIdentifier = uuidToUseridCache.opsForValue().get(uuid.toString());
+                return personIdentifier == null ? null : idportenUserCache.opsForValue().get(personIdentifier);
+            }
+            return idportenUserCache.execute(FIND_USER_BY_UUID, idportenUserCache.getKeySerializer(),
+                    (RedisSerializer<IDPortenUser>) idportenUserCache.getValueSerializer(), List.of(uuid.toString()));
+        });
+    }
+
+    /**
+     * Reads the user from Redis, or returns null while Redis is unavailable so the user is read from the database.
+     */
+    private IDPortenUser fromRedis(Supplier<IDPortenUser> read) {
+        if (loginUpdateSpool.isRedisUnavailable()) {
+            return null;
+        }
+        try {
+            return read.get();
+        } catch (DataAccessException e) {
+            loginUpdateSpool.redisUnavailable(e);
+            return null;
+        }
+    }
+
+    private IDPortenUser load(String key, Supplier<IDPortenUser> cached, Supplier<IDPortenUser> loader) {
+        // the coalescer may coordinate the pods through Redis
+        if (loginUpdateSpool.isRedisUnavailable()) {
+            return loader.get();
+        }
+        return loadCoalescer.load(key, cached, loader);
     }
 
     private Optional<Login> findExistingEid(Login eid, List<Login> existingeIDs) {
@@ -0,0 +1,179 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Pauses the stream consumers while the database is down, instead of having them fail every record.
+ * <p>
+ * Closed while database calls succeed. Database calls failing because the database is unavailable, or taking longer
+ * than slow-call-threshold, open the breaker after failure-threshold in a row. Calls failing for other reasons, like a
+ * constraint violation, count as successful since the database answered. While open, the stream consumers and retry
+ * jobs skip their work. After open-duration the breaker is half-open while a connection is validated, and closes again
+ * if the database answers in time.
+ */
+@Slf4j
+@Component
+public class DatabaseCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final DataSource dataSource;
+    private final int failureThreshold;
+    private final long slowCallThresholdNanos;
+    private final long openDurationNanos;
+    private final LongSupplier nanoTime;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+    private final List<Consumer<State>> listeners = new CopyOnWriteArrayList<>();
+
+    public DatabaseCircuitBreaker(DataSource dataSource, UpdateLastLoginStreamProperties streamProperties, MeterRegistry meterRegistry) {
+        this(dataSource, streamProperties.getCircuitBreaker(), meterRegistry, System::nanoTime);
+    }
+
+    DatabaseCircuitBreaker(DataSource dataSource, UpdateLastLoginStreamProperties.CircuitBreaker properties, MeterRegistry meterRegistry, LongSupplier nanoTime) {
+        this.dataSource = dataSource;
+        this.failureThreshold = properties.getFailureThreshold();
+        this.slowCallThresholdNanos = properties.getSlowCallThreshold().toNanos();
+        this.openDurationNanos = properties.getOpenDuration().toNanos();
+        this.nanoTime = nanoTime;
+        Gauge.builder("user.db.circuit.open", state, s -> s.get() == State.CLOSED ? 0 : 1).register(meterRegistry);
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * False while the database is considered down, callers should leave their work for later.
+     */
+    public boolean isCallPermitted() {
+        return state.get() == State.CLOSED;
+    }
+
+    /**
+     * Called with the new state when the breaker opens or closes.
+     */
+    public void addListener(Consumer<State> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Runs a database call, and counts it as failing if the database is unavailable or slow.
+     */
+    public <T> T execute(Supplier<T> call) {
+        long start = nanoTime.getAsLong();
+        try {
+            T result = call.get();
+            onResult(nanoTime.getAsLong() - start, null);
+            return result;
+        } catch (RuntimeException e) {
+            onResult(nanoTime.getAsLong() - start, e);
+            throw e;
+        }
+    }
+
+    private void onResult(long elapsedNanos, RuntimeException e) {
+        boolean unavailable = e != null && isUnavailable(e);
+        if (!unavailable && elapsedNanos <= slowCallThresholdNanos) {
+            consecutiveFailures.set(0);
+            return;
+        }
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && state.compareAndSet(State.CLOSED, State.OPEN)) {
+            openedAt = nanoTime.getAsLong();
+            log.warn("Database circuit opened after {} failing or slow calls, pausing stream consumers for {}",
+                    consecutiveFailures.get(), Duration.ofNanos(openDurationNanos), e);
+            notifyListeners(State.OPEN);
+        }
+    }
+
+    /**
+     * Checks the database once open-duration has passed since the breaker opened. Getting a connection may block for
+     * the connection timeout of the pool, so the scheduler needs a thread per scheduled job for this to run on time.
+     */
+    @Scheduled(fixedDelay = 1, timeUnit = TimeUnit.SECONDS)
+    public void probe() {
+        if (state.get() != State.OPEN || nanoTime.getAsLong() - openedAt < openDurationNanos
+                || !state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            return;
+        }
+        long start = nanoTime.getAsLong();
+        boolean healthy;
+        try (Connection connection = dataSource.getConnection()) {
+            healthy = connection.isValid((int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(slowCallThresholdNanos)))
+                    && nanoTime.getAsLong() - start <= slowCallThresholdNanos;
+        } catch (SQLException | RuntimeException e) {
+            log.debug("Database is still down", e);
+            healthy = false;
+        }
+        if (healthy) {
+            consecutiveFailures.set(0);
+            state.set(State.CLOSED);
+            log.info("Database circuit closed, resuming stream consumers");
+            notifyListeners(State.CLOSED);
+        } else {
+            openedAt = nanoTime.getAsLong();
+            state.set(State.OPEN);
+            log.info("Database is still down, pausing stream consumers for another {}", Duration.ofNanos(openDurationNanos));
+        }
+    }
+
+    private void notifyListeners(State newState) {
+        for (Consumer<State> listener : listeners) {
+            try {
+                listener.accept(newState);
+            } catch (RuntimeException e) {
+                log.warn("Failed to notify database circuit listener of state {}", newState, e);
+            }
+        }
+    }
+
+    /**
+     * Failures meaning the database could not be reached, as opposed to the database rejecting the call.
+     */
+    static boolean isUnavailable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DataAccessResourceFailureException
+                    || cause instanceof TransientDataAccessResourceException
+                    || cause instanceof RecoverableDataAccessException
+                    || cause instanceof QueryTimeoutException
+                    || cause instanceof CannotCreateTransactionException
+                    || cause instanceof SQLTransientConnectionException
+                    || cause instanceof SQLNonTransientConnectionException
+                    || cause instanceof SQLRecoverableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,126 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import no.idporten.userservice.data.message.UpdateEidMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.RedisStreamCommands.XAddOptions;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM;
+
+/**
+ * Holds login updates that kept failing, so they no longer cost a database round trip on every retry.
+ * <p>
+ * A dead letter is the original record with the partition and id it came from, the number of deliveries and the last
+ * failure added. Replaying a dead letter adds the original record to its partition again and removes the dead letter.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class DeadLetterStream {
+
+    public static final String SOURCE_STREAM = "dead-letter-stream";
+    public static final String SOURCE_ID = "dead-letter-id";
+    public static final String DELIVERIES = "dead-letter-deliveries";
+    public static final String REASON = "dead-letter-reason";
+
+    private static final int MAX_REASON_LENGTH = 500;
+
+    private final RedisTemplate<String, String> updateEidCache;
+    private final UpdateLastLoginStreamProperties streamProperties;
+
+    private final Counter deadLetteredRecords;
+    private final Counter replayedRecords;
+
+    public DeadLetterStream(RedisTemplate<String, String> updateEidCache, UpdateLastLoginStreamProperties streamProperties, MeterRegistry meterRegistry) {
+        this.updateEidCache = updateEidCache;
+        this.streamProperties = streamProperties;
+        this.deadLetteredRecords = Counter.builder("user.stream.records").tag("result", "dead-lettered").register(meterRegistry);
+        this.replayedRecords = Counter.builder("user.stream.records").tag("result", "replayed").register(meterRegistry);
+    }
+
+    /**
+     * Adds a failing record. The caller acknowledges the record once it is added.
+     */
+    public void add(String streamKey, MapRecord<String, ?, ?> record, long deliveries, Throwable reason) {
+        Map<String, String> deadLetter = new LinkedHashMap<>();
+        record.getValue().forEach((field, value) -> deadLetter.put(String.valueOf(field), String.valueOf(value)));
+        deadLetter.put(SOURCE_STREAM, streamKey);
+        deadLetter.put(SOURCE_ID, record.getId().getValue());
+        deadLetter.put(DELIVERIES, String.valueOf(deliveries));
+        deadLetter.put(REASON, reason(reason));
+        updateEidCache.opsForStream().add(StreamRecords.newRecord().in(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM).ofMap(deadLetter), addOptions());
+        deadLetteredRecords.increment();
+        log.warn("Moved message {} from {} to {} after {} deliveries: {}", record.getId(), streamKey,
+                UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM, deliveries, deadLetter.get(REASON));
+    }
+
+    /**
+     * The oldest dead letters.
+     */
+    public List<MapRecord<String, Object, Object>> list(long count) {
+        return updateEidCache.opsForStream().range(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM, Range.unbounded(), Limit.limit().count((int) count));
+    }
+
+    public long size() {
+        Long size = updateEidCache.opsForStream().size(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * Adds the original record of a dead letter to its partition again, and removes the dead letter.
+     *
+     * @return false if there is no dead letter with the id
+     * @throws UserServiceException if the dead letter holds a record that can not be read, which would only fail again
+     */
+    public boolean replay(RecordId id) {
+        var streamOperations = updateEidCache.opsForStream();
+        List<MapRecord<String, Object, Object>> deadLetters = streamOperations.range(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM, Range.closed(id.getValue(), id.getValue()));
+        if (deadLetters == null || deadLetters.isEmpty()) {
+            return false;
+        }
+        UpdateEidMessage message;
+        try {
+            message = RetryConsumer.updateEidEvent(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM, deadLetters.getFirst()).getValue();
+        } catch (RuntimeException e) {
+            throw UserServiceException.deadLetterNotReplayable("Dead letter can not be replayed, the login update can not be read.");
+        }
+        if (message.eidName() == null) {
+            throw UserServiceException.deadLetterNotReplayable("Dead letter can not be replayed, the login update has no eID.");
+        }
+        Map<Object, Object> record = new LinkedHashMap<>(deadLetters.getFirst().getValue());
+        List.of(SOURCE_STREAM, SOURCE_ID, DELIVERIES, REASON).forEach(record::remove);
+        // partitions may have changed since the record failed
+        String streamKey = streamProperties.streamKey(message.userId());
+        streamOperations.add(StreamRecords.newRecord().in(streamKey).ofMap(record), addOptions());
+        streamOperations.delete(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM, id);
+        replayedRecords.increment();
+        log.info("Replayed dead letter {} to {}", id, streamKey);
+        return true;
+    }
+
+    private XAddOptions addOptions() {
+        return streamProperties.getMaxLength() > 0
+                ? XAddOptions.maxlen(streamProperties.getMaxLength()).approximateTrimming(true)
+                : XAddOptions.none();
+    }
+
+    private static String reason(Throwable reason) {
+        String text = reason.getClass().getSimpleName() + ": " + reason.getMessage();
+        return text.length() > MAX_REASON_LENGTH ? text.substring(0, MAX_REASON_LENGTH) : text;
+    }
+
+}
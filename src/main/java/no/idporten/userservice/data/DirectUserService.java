@@ -14,8 +14,12 @@ import org.springframework.util.CollectionUtils;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Slf4j
 @RequiredArgsConstructor
@@ -23,28 +27,81 @@ import java.util.UUID;
 @Transactional(readOnly = true)
 public class DirectUserService implements UserService, ApplicationEventPublisherAware {
 
+    /**
+     * At most this many previous users are loaded with {@link FetchPlan#HISTORY}, bounding the recursive query.
+     */
+    static final int MAX_HISTORY_DEPTH = 10;
+
     private final UserRepository userRepository;
 
+    private final LoginRepository loginRepository;
+
     private ApplicationEventPublisher eventPublisher;
 
     @Override
     public IDPortenUser findUser(UUID uuid) {
+        return findUser(uuid, FetchPlan.LOGINS);
+    }
+
+    @Override
+    public IDPortenUser findUser(UUID uuid, FetchPlan fetchPlan) {
         Optional<UserEntity> user = userRepository.findByUuid(uuid);
 
         user.ifPresent(userEntity ->
                 eventPublisher.publishEvent(new UserReadEvent(this, new IDPortenUser(userEntity))));
 
-        return user.map(IDPortenUser::new).orElse(null);
+        return user.map(userEntity -> convert(userEntity, fetchPlan)).orElse(null);
     }
 
     @Override
     public Optional<IDPortenUser> searchForUser(String personIdentifier) {
+        return searchForUser(personIdentifier, FetchPlan.LOGINS);
+    }
+
+    @Override
+    public Optional<IDPortenUser> searchForUser(String personIdentifier, FetchPlan fetchPlan) {
         Optional<UserEntity> user = userRepository.findByPersonIdentifier(personIdentifier);
 
         user.ifPresent(userEntity ->
                 eventPublisher.publishEvent(new UserReadEvent(this, new IDPortenUser(userEntity))));
 
-        return user.map(IDPortenUser::new);
+        return user.map(userEntity -> convert(userEntity, fetchPlan));
+    }
+
+    private IDPortenUser convert(UserEntity userEntity, FetchPlan fetchPlan) {
+        IDPortenUser idPortenUser = new IDPortenUser(userEntity);
+        // the lazy previous user is only a reference here, so checking it does not load it
+        if (fetchPlan == FetchPlan.HISTORY && userEntity.getPreviousUser() != null) {
+            idPortenUser.setPreviousUser(previousUsers(userEntity.getUuid()));
+        }
+        return idPortenUser;
+    }
+
+    /**
+     * Loads the previous users of the user in two statements, one following the chain of previous users and one
+     * loading them with their logins, and links them up newest first.
+     */
+    private IDPortenUser previousUsers(UUID uuid) {
+        List<UUID> history = userRepository.findHistory(uuid.toString(), MAX_HISTORY_DEPTH).stream()
+                .skip(1)
+                .map(UUID::fromString)
+                .toList();
+        if (history.isEmpty()) {
+            return null;
+        }
+        Map<UUID, UserEntity> users = userRepository.findByUuidIn(history).stream()
+                .collect(Collectors.toMap(UserEntity::getUuid, Function.identity()));
+
+        IDPortenUser previousUser = null;
+        for (UUID previousUuid : history.reversed()) {
+            UserEntity userEntity = users.get(previousUuid);
+            if (userEntity != null) {
+                IDPortenUser user = new IDPortenUser(userEntity);
+                user.setPreviousUser(previousUser);
+                previousUser = user;
+            }
+        }
+        return previousUser;
     }
 
     @Transactional
@@ -135,6 +192,29 @@ public class DirectUserService implements UserService, ApplicationEventPublisher
         return new IDPortenUser(savedUser);
     }
 
+    /**
+     * Sets the last login for each user and eID without loading the users first, inserting logins not seen before. Last
+     * logins are never moved backwards. The updated users are then loaded with their logins in one query and published
+     * as updated.
+     */
+    @Transactional
+    public List<IDPortenUser> updateLastLogins(List<LastLogin> lastLogins) {
+        if (lastLogins.isEmpty()) {
+            return List.of();
+        }
+        if (lastLogins.size() == 1) {
+            LastLogin lastLogin = lastLogins.getFirst();
+            loginRepository.upsertLastLogin(lastLogin.userUuid().toString(), lastLogin.eidName(), lastLogin.lastLoginAtEpochMs());
+        } else {
+            loginRepository.upsertLastLogins(lastLogins);
+        }
+
+        Set<UUID> userUuids = lastLogins.stream().map(LastLogin::userUuid).collect(Collectors.toSet());
+        List<IDPortenUser> updatedUsers = userRepository.findByUuidIn(userUuids).stream().map(IDPortenUser::new).toList();
+        updatedUsers.forEach(user -> eventPublisher.publishEvent(new UserUpdatedEvent(this, user)));
+
+        return updatedUsers;
+    }
 
     private LoginEntity findExistingEid(Login eid, List<LoginEntity> existingeIDs) {
         for (LoginEntity e : existingeIDs) {
@@ -163,17 +243,19 @@ public class DirectUserService implements UserService, ApplicationEventPublisher
     @Transactional
     @Override
     public IDPortenUser changePid(String currentPid, String newPid) {
-        IDPortenUser userExists = searchForUser(currentPid).orElseThrow(() -> UserServiceException.userNotFound("No user found for current person identifier."));
+        // the loaded user is changed rather than a copy saved, so its own previous user is kept
+        UserEntity currentUser = userRepository.findByPersonIdentifier(currentPid).orElseThrow(() -> UserServiceException.userNotFound("No user found for current person identifier."));
 
         if (userRepository.findByPersonIdentifier(newPid).isPresent()) {
             throw UserServiceException.duplicateUser("User already exists for new person identifier.");
         }
-        UserEntity currentUser = userExists.toEntity();
         currentUser.setActive(false);
         userRepository.save(currentUser);
 
         UserEntity newUser = userRepository.save(UserEntity.builder().personIdentifier(newPid).active(true).previousUser(currentUser).build());
-        return new IDPortenUser(newUser);
+        IDPortenUser changedUser = new IDPortenUser(newUser);
+        changedUser.setPreviousUser(new IDPortenUser(newUser.getPreviousUser()));
+        return changedUser;
     }
 
     @Override
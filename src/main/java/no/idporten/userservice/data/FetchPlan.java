@@ -0,0 +1,18 @@
+package no.idporten.userservice.data;
+
+/**
+ * What to load along with a user.
+ */
+public enum FetchPlan {
+
+    /**
+     * The user and its logins, loaded in one statement. Used on the login path.
+     */
+    LOGINS,
+
+    /**
+     * The user and its logins, and the users it has replaced through changes of person identifier, newest first.
+     */
+    HISTORY
+
+}
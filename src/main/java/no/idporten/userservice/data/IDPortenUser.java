@@ -8,10 +8,12 @@ import java.io.Serial;
 import java.io.Serializable;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 @Data
 @AllArgsConstructor
@@ -73,6 +75,9 @@ public class IDPortenUser implements Serializable {
         }
     }
 
+    /**
+     * Converts the user without its previous users, which are only loaded with {@link FetchPlan#HISTORY}.
+     */
     public IDPortenUser(UserEntity u) {
         this.id = u.getUuid();
         this.pid = u.getPersonIdentifier();
@@ -90,9 +95,23 @@ public class IDPortenUser implements Serializable {
         if (u.getLogins() != null && !u.getLogins().isEmpty()) {
             this.logins = u.getLogins().stream().map(Login::new).toList();
         }
-        if(u.getPreviousUser() != null){
-            this.previousUser = new IDPortenUser(u.getPreviousUser());
-        }
+    }
+
+    /**
+     * Deep copy, for handing out users held in shared in-memory caches to callers that may mutate them.
+     */
+    public IDPortenUser copy() {
+        return new IDPortenUser(
+                id,
+                pid,
+                created,
+                lastUpdated,
+                active,
+                closedCode,
+                closedCodeLastUpdated,
+                previousUser == null ? null : previousUser.copy(),
+                helpDeskCaseReferences == null ? null : new ArrayList<>(helpDeskCaseReferences),
+                logins == null ? null : logins.stream().map(Login::copy).collect(Collectors.toCollection(ArrayList::new)));
     }
 
     public UserEntity toEntity() {
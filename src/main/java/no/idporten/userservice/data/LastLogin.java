@@ -0,0 +1,9 @@
+package no.idporten.userservice.data;
+
+import java.util.UUID;
+
+/**
+ * The latest login with an eID for a user, written without loading the user. See {@link LoginRepository}.
+ */
+public record LastLogin(UUID userUuid, String eidName, long lastLoginAtEpochMs) {
+}
@@ -27,6 +27,10 @@ public class Login {
         this.lastLogin = Instant.ofEpochMilli(loginEntity.getLastLoginAtEpochMs());
     }
 
+    public Login copy() {
+        return new Login(id, eidName, lastLogin, firstLogin);
+    }
+
     public LoginEntity toEntity(UserEntity user) {
         LoginEntity loginEntity = new LoginEntity();
         loginEntity.setId(id);
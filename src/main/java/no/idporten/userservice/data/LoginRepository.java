@@ -0,0 +1,21 @@
+package no.idporten.userservice.data;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface LoginRepository extends JpaRepository<LoginEntity, Long>, LoginRepositoryCustom {
+
+    /**
+     * Sets the last login for the user and eID, or inserts it as the first login if the user has not used the eID
+     * before. The last login is never moved backwards.
+     */
+    @Modifying
+    @Query(value = "INSERT INTO login (user_uuid, eid_name, first_login_ms, last_login_ms) VALUES (:userUuid, :eidName, :lastLoginMs, :lastLoginMs) "
+            + "ON DUPLICATE KEY UPDATE last_login_ms = GREATEST(last_login_ms, VALUES(last_login_ms))", nativeQuery = true)
+    int upsertLastLogin(@Param("userUuid") String userUuid, @Param("eidName") String eidName, @Param("lastLoginMs") long lastLoginMs);
+
+}
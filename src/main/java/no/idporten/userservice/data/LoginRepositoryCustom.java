@@ -0,0 +1,13 @@
+package no.idporten.userservice.data;
+
+import java.util.List;
+
+public interface LoginRepositoryCustom {
+
+    /**
+     * Multi-row variant of {@link LoginRepository#upsertLastLogin(String, String, long)}, writing up to 500 logins per
+     * statement.
+     */
+    int upsertLastLogins(List<LastLogin> lastLogins);
+
+}
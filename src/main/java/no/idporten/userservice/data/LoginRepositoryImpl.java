@@ -0,0 +1,45 @@
+package no.idporten.userservice.data;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.Query;
+
+import java.util.Comparator;
+import java.util.List;
+
+class LoginRepositoryImpl implements LoginRepositoryCustom {
+
+    private static final int MAX_ROWS = 500;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public int upsertLastLogins(List<LastLogin> lastLogins) {
+        // the same order in all pods, so concurrent upserts of overlapping logins do not deadlock
+        List<LastLogin> sorted = lastLogins.stream()
+                .sorted(Comparator.comparing(LastLogin::userUuid).thenComparing(LastLogin::eidName))
+                .toList();
+        int updated = 0;
+        for (int from = 0; from < sorted.size(); from += MAX_ROWS) {
+            List<LastLogin> rows = sorted.subList(from, Math.min(from + MAX_ROWS, sorted.size()));
+            StringBuilder sql = new StringBuilder("INSERT INTO login (user_uuid, eid_name, first_login_ms, last_login_ms) VALUES ");
+            for (int i = 0; i < rows.size(); i++) {
+                sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+            }
+            sql.append(" ON DUPLICATE KEY UPDATE last_login_ms = GREATEST(last_login_ms, VALUES(last_login_ms))");
+
+            Query query = entityManager.createNativeQuery(sql.toString());
+            int position = 1;
+            for (LastLogin row : rows) {
+                query.setParameter(position++, row.userUuid().toString());
+                query.setParameter(position++, row.eidName());
+                query.setParameter(position++, row.lastLoginAtEpochMs());
+                query.setParameter(position++, row.lastLoginAtEpochMs());
+            }
+            updated += query.executeUpdate();
+        }
+        return updated;
+    }
+
+}
@@ -0,0 +1,364 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import no.idporten.userservice.data.message.UpdateEidMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisStreamCommands.XAddOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Buffers login updates in a local memory-mapped file while Redis is unavailable, so logins neither fail nor wait for
+ * the Redis command timeout during a Redis incident.
+ * <p>
+ * Once adding a login update to the stream or reading a user from Redis fails, Redis is considered unavailable until the
+ * spool adds login updates to the stream again. Meanwhile login updates are appended to the spool, and users are read
+ * from the database, so logins do not wait for the Redis command timeout. The spool is drained in batches to the
+ * stream, or straight to the database while Redis is still unavailable. A batch sent to Redis when the connection broke
+ * may be sent again, which is harmless as a login time is only ever moved forward.
+ * <p>
+ * The file starts with a header holding the read and write positions, followed by the length prefixed records. The
+ * mapped file survives the process dying, and the spool is drained after a restart. Records are not forced to disk on
+ * every append, so a crash of the node itself may lose the newest ones.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class LoginUpdateSpool {
+
+    static final long MAGIC = 0x4C4F47494E53504CL;
+    static final int HEADER_SIZE = 24;
+
+    private static final int READ_POSITION = 8;
+    private static final int WRITE_POSITION = 16;
+    private static final int MAX_EID_NAME_LENGTH = 255;
+
+    private final RedisTemplate<String, String> updateEidCache;
+    private final DirectUserService userService;
+    private final DatabaseCircuitBreaker circuitBreaker;
+    private final UpdateLastLoginStreamProperties streamProperties;
+
+    private FileChannel channel;
+    private FileLock lock;
+    private MappedByteBuffer buffer;
+    private int readPosition;
+    private int writePosition;
+    private boolean dirty;
+    private volatile boolean redisUnavailable = false;
+
+    private final Counter spooledRecords;
+    private final Counter streamedRecords;
+    private final Counter storedRecords;
+    private final Counter droppedRecords;
+
+    public LoginUpdateSpool(RedisTemplate<String, String> updateEidCache, DirectUserService userService, DatabaseCircuitBreaker circuitBreaker,
+                            UpdateLastLoginStreamProperties streamProperties, MeterRegistry meterRegistry) {
+        this.updateEidCache = updateEidCache;
+        this.userService = userService;
+        this.circuitBreaker = circuitBreaker;
+        this.streamProperties = streamProperties;
+        this.spooledRecords = Counter.builder("user.stream.spool.records").tag("result", "spooled").register(meterRegistry);
+        this.streamedRecords = Counter.builder("user.stream.spool.records").tag("result", "streamed").register(meterRegistry);
+        this.storedRecords = Counter.builder("user.stream.spool.records").tag("result", "stored").register(meterRegistry);
+        this.droppedRecords = Counter.builder("user.stream.spool.records").tag("result", "dropped").register(meterRegistry);
+        Gauge.builder("user.stream.spool.used", this, LoginUpdateSpool::used).baseUnit("bytes").register(meterRegistry);
+        UpdateLastLoginStreamProperties.Spool properties = streamProperties.getSpool();
+        if (properties.isEnabled()) {
+            open(Path.of(properties.getDirectory(), "update-last-login-" + System.getenv().getOrDefault("POD_NAME", "local") + ".spool"),
+                    (int) Math.min(Integer.MAX_VALUE, properties.getSize().toBytes()));
+        }
+    }
+
+    private void open(Path file, int size) {
+        try {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            lock = channel.tryLock();
+            if (lock == null) {
+                throw new IOException("Locked by another process");
+            }
+            // never map less than an earlier, larger spool left behind
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, Math.min(Integer.MAX_VALUE, channel.size())));
+        } catch (IOException | OverlappingFileLockException e) {
+            log.warn("Unable to open login update spool {}, login updates fail while Redis is unavailable", file, e);
+            close();
+            return;
+        }
+        long magic = buffer.getLong(0);
+        readPosition = (int) buffer.getLong(READ_POSITION);
+        writePosition = (int) buffer.getLong(WRITE_POSITION);
+        if (magic != MAGIC || readPosition < HEADER_SIZE || readPosition > writePosition || writePosition > buffer.capacity()) {
+            if (magic != 0) {
+                log.warn("Login update spool {} is corrupt, starting with an empty spool", file);
+            }
+            buffer.putLong(0, MAGIC);
+            reset();
+        } else if (readPosition < writePosition) {
+            log.info("Login update spool {} holds {} bytes of login updates from before the restart", file, used());
+        }
+    }
+
+    /**
+     * True from Redis failing until login updates are added to the stream again. Neither the stream nor the user cache
+     * should be used meanwhile.
+     */
+    public boolean isRedisUnavailable() {
+        return redisUnavailable;
+    }
+
+    public void redisUnavailable(DataAccessException e) {
+        if (!redisUnavailable) {
+            redisUnavailable = true;
+            log.warn("Redis is unavailable, spooling login updates locally and reading users from the database until it is back", e);
+        }
+    }
+
+    public void redisAvailable() {
+        if (redisUnavailable) {
+            redisUnavailable = false;
+            log.info("Redis is available again");
+        }
+    }
+
+    /**
+     * True while there are login updates waiting in the spool. New login updates must then be appended to the spool
+     * too, to stay behind the ones already there.
+     */
+    public synchronized boolean isSpooling() {
+        return buffer != null && readPosition < writePosition;
+    }
+
+    /**
+     * Appends a login update.
+     *
+     * @return false if the spool is turned off or full
+     */
+    public synchronized boolean append(UpdateEidMessage message) {
+        if (buffer == null) {
+            return false;
+        }
+        byte[] eidName = message.eidName().getBytes(StandardCharsets.UTF_8);
+        if (eidName.length > MAX_EID_NAME_LENGTH) {
+            return false;
+        }
+        int length = 26 + eidName.length;
+        if (writePosition + 4 + length > buffer.capacity()) {
+            compact();
+        }
+        if (writePosition + 4 + length > buffer.capacity()) {
+            droppedRecords.increment();
+            log.warn("Login update spool is full, unable to spool login update for user {}", message.userId());
+            return false;
+        }
+        ByteBuffer record = buffer.duplicate().position(writePosition);
+        record.putInt(length)
+                .putLong(message.userId().getMostSignificantBits())
+                .putLong(message.userId().getLeastSignificantBits())
+                .putLong(message.loginTimeInEpochMillis())
+                .putShort((short) eidName.length)
+                .put(eidName);
+        // the record is only visible once the write position is updated
+        writePosition = record.position();
+        buffer.putLong(WRITE_POSITION, writePosition);
+        dirty = true;
+        spooledRecords.increment();
+        return true;
+    }
+
+    /**
+     * Moves the spooled login updates to the stream, or to the database while Redis is unavailable.
+     */
+    @Scheduled(fixedDelayString = "${digdir.streams.update-last-login.spool.drain-interval:1s}")
+    public void drain() {
+        DataAccessException redisException = null;
+        Batch batch;
+        while ((batch = next(streamProperties.getBatchSize())) != null) {
+            // once Redis has failed, the rest goes to the database without waiting for Redis to time out again
+            if (redisException == null) {
+                try {
+                    addToStream(batch.messages());
+                    streamedRecords.increment(batch.messages().size());
+                    redisAvailable();
+                    advance(batch.length());
+                    continue;
+                } catch (DataAccessException e) {
+                    redisException = e;
+                    redisUnavailable(e);
+                }
+            }
+            if (!circuitBreaker.isCallPermitted() || !store(batch.messages(), redisException)) {
+                break;
+            }
+            advance(batch.length());
+        }
+        force();
+    }
+
+    /**
+     * Adds the login updates to the stream in one round trip, bypassing the spool.
+     */
+    void addToStream(List<UpdateEidMessage> messages) {
+        XAddOptions addOptions = streamProperties.getMaxLength() > 0
+                ? XAddOptions.maxlen(streamProperties.getMaxLength()).approximateTrimming(true)
+                : XAddOptions.none();
+        updateEidCache.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                var streamOperations = ((RedisOperations<String, String>) operations).opsForStream();
+                for (UpdateEidMessage message : messages) {
+                    streamOperations.add(StreamRecords.newRecord().ofObject(message).withStreamKey(streamProperties.streamKey(message.userId())), addOptions);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Writes the login updates straight to the database.
+     *
+     * @return false if the database is unavailable as well, leaving the login updates in the spool
+     */
+    private boolean store(List<UpdateEidMessage> messages, DataAccessException redisException) {
+        Collection<LastLogin> lastLogins = RetryConsumer.latestLogins(messages);
+        log.info("Redis is unavailable, writing {} spooled login updates to the database: {}", messages.size(), redisException.getMessage());
+        try {
+            circuitBreaker.execute(() -> userService.updateLastLogins(List.copyOf(lastLogins)));
+            storedRecords.increment(messages.size());
+            return true;
+        } catch (RuntimeException e) {
+            if (DatabaseCircuitBreaker.isUnavailable(e)) {
+                return false;
+            }
+            log.warn("Failed to write {} spooled login updates together, writing them one by one", lastLogins.size(), e);
+        }
+        for (LastLogin lastLogin : lastLogins) {
+            try {
+                circuitBreaker.execute(() -> userService.updateLastLogins(List.of(lastLogin)));
+                storedRecords.increment();
+            } catch (RuntimeException e) {
+                if (DatabaseCircuitBreaker.isUnavailable(e)) {
+                    return false;
+                }
+                // no dead-letter stream without Redis, the database rejected it so retrying will not help
+                droppedRecords.increment();
+                log.warn("Dropped spooled login update for user {} rejected by the database", lastLogin.userUuid(), e);
+            }
+        }
+        return true;
+    }
+
+    synchronized Batch next(int count) {
+        if (!isSpooling()) {
+            return null;
+        }
+        ByteBuffer records = buffer.duplicate().position(readPosition).limit(writePosition);
+        List<UpdateEidMessage> messages = new ArrayList<>(count);
+        while (messages.size() < count && records.hasRemaining()) {
+            int length = records.remaining() >= 4 ? records.getInt() : -1;
+            if (length < 26 || length > records.remaining()) {
+                log.error("Login update spool is corrupt at position {}, dropping the rest of it", records.position());
+                droppedRecords.increment();
+                return new Batch(messages, writePosition - readPosition);
+            }
+            UUID userId = new UUID(records.getLong(), records.getLong());
+            long loginTime = records.getLong();
+            byte[] eidName = new byte[records.getShort()];
+            records.get(eidName);
+            messages.add(new UpdateEidMessage(userId, loginTime, new String(eidName, StandardCharsets.UTF_8)));
+        }
+        return new Batch(messages, records.position() - readPosition);
+    }
+
+    /**
+     * Removes the given number of bytes of handled records. Safe across a compaction, which moves both positions.
+     */
+    synchronized void advance(int length) {
+        if (buffer == null) {
+            return;
+        }
+        readPosition += length;
+        if (readPosition >= writePosition) {
+            reset();
+        } else {
+            buffer.putLong(READ_POSITION, readPosition);
+        }
+    }
+
+    private void compact() {
+        if (readPosition == HEADER_SIZE) {
+            return;
+        }
+        int used = used();
+        buffer.put(HEADER_SIZE, buffer, readPosition, used);
+        readPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE + used;
+        buffer.putLong(READ_POSITION, readPosition);
+        buffer.putLong(WRITE_POSITION, writePosition);
+    }
+
+    private void reset() {
+        readPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE;
+        buffer.putLong(READ_POSITION, readPosition);
+        buffer.putLong(WRITE_POSITION, writePosition);
+    }
+
+    synchronized int used() {
+        return writePosition - readPosition;
+    }
+
+    private synchronized void force() {
+        if (buffer != null && dirty) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        force();
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close login update spool", e);
+        }
+        buffer = null;
+        lock = null;
+        channel = null;
+    }
+
+    record Batch(List<UpdateEidMessage> messages, int length) {
+    }
+
+}
@@ -0,0 +1,179 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import no.idporten.userservice.data.message.UpdateEidMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes login updates straight to the database while the update-last-login stream lags behind, so the last login of
+ * a user does not go stale for minutes when the consumers can not keep up.
+ * <p>
+ * The lag sampled by {@link UpdateLastLoginStreamMetrics} decides: login updates are written directly once the lag
+ * exceeds max-lag, and go through the stream again once it is below half of that. Direct login updates are queued,
+ * and one thread writes whatever is queued in batches of up to batch-size, waiting up to flush-delay to fill a batch.
+ * A batch failing is added to the stream, or to the {@link LoginUpdateSpool} if Redis fails too.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class LoginUpdateWriteBehind implements SmartLifecycle {
+
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(1);
+
+    private final DirectUserService userService;
+    private final DatabaseCircuitBreaker circuitBreaker;
+    private final UpdateLastLoginStreamMetrics streamMetrics;
+    private final LoginUpdateSpool loginUpdateSpool;
+    private final boolean enabled;
+    private final Duration maxLag;
+    private final Duration flushDelay;
+    private final int batchSize;
+    private final BlockingQueue<UpdateEidMessage> queue;
+
+    private volatile boolean direct = false;
+    private volatile boolean running = false;
+    private Thread writer;
+
+    private final Counter writtenRecords;
+    private final Counter streamedRecords;
+    private final Counter spooledRecords;
+    private final Counter droppedRecords;
+
+    public LoginUpdateWriteBehind(DirectUserService userService, DatabaseCircuitBreaker circuitBreaker, UpdateLastLoginStreamMetrics streamMetrics,
+                                  LoginUpdateSpool loginUpdateSpool, UpdateLastLoginStreamProperties streamProperties, MeterRegistry meterRegistry) {
+        UpdateLastLoginStreamProperties.DirectFallback properties = streamProperties.getDirectFallback();
+        this.userService = userService;
+        this.circuitBreaker = circuitBreaker;
+        this.streamMetrics = streamMetrics;
+        this.loginUpdateSpool = loginUpdateSpool;
+        this.enabled = properties.isEnabled();
+        this.maxLag = properties.getMaxLag();
+        this.flushDelay = properties.getFlushDelay();
+        this.batchSize = streamProperties.getBatchSize();
+        this.queue = new LinkedBlockingQueue<>(properties.getQueueSize());
+        this.writtenRecords = Counter.builder("user.stream.direct.records").tag("result", "written").register(meterRegistry);
+        this.streamedRecords = Counter.builder("user.stream.direct.records").tag("result", "streamed").register(meterRegistry);
+        this.spooledRecords = Counter.builder("user.stream.direct.records").tag("result", "spooled").register(meterRegistry);
+        this.droppedRecords = Counter.builder("user.stream.direct.records").tag("result", "dropped").register(meterRegistry);
+        Gauge.builder("user.stream.direct", this, w -> w.isDirect() ? 1 : 0).register(meterRegistry);
+        Gauge.builder("user.stream.direct.queued", queue, BlockingQueue::size).register(meterRegistry);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    @Scheduled(fixedDelayString = "${digdir.streams.update-last-login.metrics-interval:15s}")
+    public void update() {
+        if (!enabled) {
+            return;
+        }
+        Duration lag = streamMetrics.maxLag();
+        if (!direct && lag.compareTo(maxLag) > 0) {
+            direct = true;
+            log.warn("Stream lags {} behind, writing login updates directly to the database", lag);
+        } else if (direct && lag.compareTo(maxLag.dividedBy(2)) < 0) {
+            direct = false;
+            log.info("Stream lags {} behind, writing login updates to the stream again", lag);
+        }
+    }
+
+    /**
+     * Queues the login update to be written directly to the database.
+     *
+     * @return false if the login update should go through the stream
+     */
+    public boolean offer(UpdateEidMessage message) {
+        return direct && running && circuitBreaker.isCallPermitted() && queue.offer(message);
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        writer = Thread.ofVirtual().name("update-last-login-write-behind").start(this::write);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            // the queued login updates are written before the writer stops
+            writer.join(POLL_TIMEOUT.plusSeconds(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    void write() {
+        try {
+            while (running || !queue.isEmpty()) {
+                UpdateEidMessage first = queue.poll(POLL_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<UpdateEidMessage> batch = new ArrayList<>(batchSize);
+                batch.add(first);
+                long deadline = System.nanoTime() + flushDelay.toNanos();
+                while (batch.size() < batchSize) {
+                    UpdateEidMessage next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                write(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void write(List<UpdateEidMessage> batch) {
+        try {
+            circuitBreaker.execute(() -> userService.updateLastLogins(List.copyOf(RetryConsumer.latestLogins(batch))));
+            writtenRecords.increment(batch.size());
+        } catch (RuntimeException e) {
+            // the consumers retry them one by one, and dead-letter the ones that keep failing
+            log.warn("Failed to write {} login updates directly to the database, moving them to the stream", batch.size(), e);
+            addToStream(batch);
+        }
+    }
+
+    private void addToStream(List<UpdateEidMessage> batch) {
+        try {
+            loginUpdateSpool.addToStream(batch);
+            streamedRecords.increment(batch.size());
+        } catch (DataAccessException e) {
+            loginUpdateSpool.redisUnavailable(e);
+            for (UpdateEidMessage message : batch) {
+                if (loginUpdateSpool.append(message)) {
+                    spooledRecords.increment();
+                } else {
+                    droppedRecords.increment();
+                    log.warn("Dropped login update for user {}", message.userId());
+                }
+            }
+        }
+    }
+
+}
@@ -1,69 +1,79 @@
 package no.idporten.userservice.data;
 
 import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.domain.Range;
-import org.springframework.data.redis.connection.stream.Consumer;
-import org.springframework.data.redis.connection.stream.MapRecord;
-import org.springframework.data.redis.connection.stream.PendingMessage;
 import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.StreamOperations;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
-import java.time.Duration;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
-import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
 
+/**
+ * Retries records left pending by the consumers, typically because the database was down.
+ * <p>
+ * The pending entries of each partition are listed in pages, oldest first, with their delivery counts. Each page is
+ * claimed in one command, written through the same batched path as the stream consumer and acknowledged in one command.
+ * Records are retried with a backoff growing with the number of deliveries, and moved to the {@link DeadLetterStream}
+ * when they keep failing.
+ */
 @Component
 @Slf4j
 @ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
 public class PendingMessagesRetryConsumer extends RetryConsumer {
 
-    public PendingMessagesRetryConsumer(RedisTemplate<String, String> updateEidCache, DirectUserService userService) {
-        super(updateEidCache, userService);
+    static final int PAGE_SIZE = 500;
+
+    private final DeadLetterStream deadLetterStream;
+
+    public PendingMessagesRetryConsumer(RedisTemplate<String, String> updateEidCache, DirectUserService userService,
+                                        DatabaseCircuitBreaker circuitBreaker, UpdateLastLoginStreamProperties streamProperties,
+                                        DeadLetterStream deadLetterStream) {
+        super(updateEidCache, userService, circuitBreaker, streamProperties);
+        this.deadLetterStream = deadLetterStream;
     }
 
     @Scheduled(fixedRate = 60, timeUnit = TimeUnit.SECONDS)
     public void handlePendingMessages() {
-        createConsumerGroupIfItDoesNotExist();
+        if (!circuitBreaker.isCallPermitted()) {
+            log.info("Database is down. Retrying pending messages in a minute");
+            return;
+        }
+        // a failing partition must not hold back the others
+        for (String streamKey : streamKeys) {
+            try {
+                retryPendingMessages(streamKey);
+            } catch (RuntimeException e) {
+                if (!recreateConsumerGroupIfMissing(streamKey, e)) {
+                    log.warn("Failed to retry pending messages in {}", streamKey, e);
+                }
+            }
+        }
+    }
 
+    private void retryPendingMessages(String streamKey) {
         var streamOperations = updateEidCache.opsForStream();
-        PendingMessages pendingMessages = streamOperations.pending(UPDATE_LAST_LOGIN_STREAM, Consumer.from(UPDATE_LAST_LOGIN_GROUP, consumerName), Range.unbounded(), 500);
-
-        if (pendingMessages != null && !pendingMessages.isEmpty()) {
-            log.info("{}: Pending messages summary: {}", consumerName, pendingMessages.size());
-            if (pingDb()) {
-                for (PendingMessage pendingMessage : pendingMessages) {
-                    log.info("Attempting to claim or reprocess pending message: {}", pendingMessage.getIdAsString());
-                    List<MapRecord<String, Object, Object>> claimedMessages = getClaimedMessages(pendingMessage, streamOperations);
-
-                    if (!claimedMessages.isEmpty()) {
-                        for (MapRecord<String, Object, Object> claimedMessage : claimedMessages) {
-                            handleMessageAndAcknowledge(claimedMessage);
-                        }
-                    } else {
-                        log.info("Message not available for claim: {}", pendingMessage.getIdAsString());
-                    }
-                }
-            } else {
-                log.info("Database is down. Retrying pending messages in a minute");
+        Range<String> range = Range.unbounded();
+        while (circuitBreaker.isCallPermitted()) {
+            PendingMessages pendingMessages = streamOperations.pending(streamKey, UPDATE_LAST_LOGIN_GROUP, range, PAGE_SIZE, MIN_IDLE_TIME);
+            if (pendingMessages == null || pendingMessages.isEmpty()) {
+                return;
+            }
+            retry(streamKey, pendingMessages.toList(), deadLetterStream);
+            if (pendingMessages.size() < PAGE_SIZE) {
+                return;
             }
+            range = Range.rightUnbounded(Range.Bound.inclusive(next(pendingMessages.get(pendingMessages.size() - 1).getId())));
         }
     }
 
-    private List<MapRecord<String, Object, Object>> getClaimedMessages(PendingMessage pendingMessage, StreamOperations<String, Object, Object> streamOperations) {
-        return streamOperations.claim(
-                UPDATE_LAST_LOGIN_STREAM,
-                UPDATE_LAST_LOGIN_GROUP,
-                consumerName,
-                Duration.ofSeconds(10L),
-                pendingMessage.getId()
-        );
+    private static String next(RecordId recordId) {
+        return RecordId.of(recordId.getTimestamp(), recordId.getSequence() + 1).getValue();
     }
 
 }
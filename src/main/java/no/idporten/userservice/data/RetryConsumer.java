@@ -1,62 +1,294 @@
 package no.idporten.userservice.data;
 
 import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import no.idporten.userservice.data.message.UpdateEidMessage;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.redis.RedisSystemException;
 import org.springframework.data.redis.connection.stream.MapRecord;
-import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.ObjectRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
 import org.springframework.data.redis.core.RedisTemplate;
 
-import java.time.Instant;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 
 import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
-import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
 
 @Slf4j
 abstract public class RetryConsumer {
 
     protected final RedisTemplate<String, String> updateEidCache;
     protected final DirectUserService userService;
+    /**
+     * Records idle for a shorter time may still be processed by the consumer they were delivered to.
+     */
+    protected static final Duration MIN_IDLE_TIME = Duration.ofSeconds(10);
+
+    protected final DatabaseCircuitBreaker circuitBreaker;
+    protected final UpdateLastLoginStreamProperties streamProperties;
+    protected final List<String> streamKeys;
     protected final String consumerName = ConsumerNameProvider.getConsumerName();
 
-    public RetryConsumer(RedisTemplate<String, String> updateEidCache, DirectUserService userService) {
+    public RetryConsumer(RedisTemplate<String, String> updateEidCache, DirectUserService userService, DatabaseCircuitBreaker circuitBreaker,
+                         UpdateLastLoginStreamProperties streamProperties) {
         this.updateEidCache = updateEidCache;
         this.userService = userService;
+        this.circuitBreaker = circuitBreaker;
+        this.streamProperties = streamProperties;
+        this.streamKeys = streamProperties.streamKeys();
+    }
+
+    /**
+     * Creates the consumer group on each partition unless it exists. The group starts at the beginning of the stream, so
+     * records added while the group was missing are not skipped.
+     */
+    public void createConsumerGroup() {
+        for (String streamKey : streamKeys) {
+            createConsumerGroup(streamKey);
+        }
     }
 
-    protected boolean pingDb() {
+    protected void createConsumerGroup(String streamKey) {
         try {
-            userService.findUser(UUID.randomUUID());
-            return true;
-        } catch (Exception e) {
-            return false;
+            updateEidCache.opsForStream().createGroup(streamKey, ReadOffset.from("0"), UPDATE_LAST_LOGIN_GROUP);
+            log.info("STREAM - Created Redis group {} on stream {}", UPDATE_LAST_LOGIN_GROUP, streamKey);
+        } catch (RedisSystemException e) {
+            if (hasErrorCode(e, "BUSYGROUP")) {
+                log.info("STREAM - Redis group already exists, skipping Redis group creation: {}", UPDATE_LAST_LOGIN_GROUP);
+            } else {
+                log.error("Unable to create group {} on stream {}", UPDATE_LAST_LOGIN_GROUP, streamKey, e);
+            }
         }
     }
 
-    protected void createConsumerGroupIfItDoesNotExist() {
+    /**
+     * Recreates the consumer group if Redis failed because the group is missing, typically after a failover to a replica
+     * that never got the group.
+     *
+     * @return true if the group was missing
+     */
+    public boolean recreateConsumerGroupIfMissing(Throwable e) {
+        return recreateConsumerGroupIfMissing(streamKeys, e);
+    }
+
+    /**
+     * Recreates the consumer group on the partition if Redis failed because the group is missing there.
+     *
+     * @return true if the group was missing
+     */
+    protected boolean recreateConsumerGroupIfMissing(String streamKey, Throwable e) {
+        return recreateConsumerGroupIfMissing(List.of(streamKey), e);
+    }
+
+    private boolean recreateConsumerGroupIfMissing(List<String> streamKeys, Throwable e) {
+        if (!hasErrorCode(e, "NOGROUP")) {
+            return false;
+        }
+        log.warn("STREAM - Redis group {} is missing on stream {}, recreating it", UPDATE_LAST_LOGIN_GROUP, streamKeys);
         try {
-            StreamInfo.XInfoGroups groups = updateEidCache.opsForStream().groups(UPDATE_LAST_LOGIN_STREAM);
-            if (!consumerGroupExists(groups)) {
-                updateEidCache.opsForStream().createGroup(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP);
+            streamKeys.forEach(this::createConsumerGroup);
+        } catch (RuntimeException createException) {
+            log.error("Unable to create group {} on stream {}", UPDATE_LAST_LOGIN_GROUP, streamKeys, createException);
+        }
+        return true;
+    }
+
+    private static boolean hasErrorCode(Throwable e, String errorCode) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains(errorCode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Claims and retries the pending records that have waited out their backoff, see
+     * {@link UpdateLastLoginStreamProperties#retryBackoff(long)}. Records still failing after max-deliveries, and records
+     * that can not be read, are moved to the dead-letter stream and acknowledged. Records failing only for a transient
+     * reason, such as the database being unavailable, are retried however many times they have been delivered.
+     */
+    protected void retry(String streamKey, List<PendingMessage> pendingMessages, DeadLetterStream deadLetterStream) {
+        Map<RecordId, PendingMessage> due = new LinkedHashMap<>();
+        for (PendingMessage pendingMessage : pendingMessages) {
+            if (pendingMessage.getElapsedTimeSinceLastDelivery().compareTo(streamProperties.retryBackoff(pendingMessage.getTotalDeliveryCount())) >= 0) {
+                due.put(pendingMessage.getId(), pendingMessage);
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        var streamOperations = updateEidCache.opsForStream();
+        // records claimed by another consumer meanwhile are no longer idle, and are not returned
+        List<MapRecord<String, Object, Object>> claimed = streamOperations.claim(streamKey, UPDATE_LAST_LOGIN_GROUP, consumerName,
+                MIN_IDLE_TIME, due.keySet().toArray(new RecordId[0]));
+
+        Map<RecordId, MapRecord<String, Object, Object>> records = new LinkedHashMap<>();
+        List<ObjectRecord<String, UpdateEidMessage>> updateEidEvents = new ArrayList<>();
+        List<RecordId> acknowledged = new ArrayList<>();
+        for (MapRecord<String, Object, Object> record : claimed) {
+            records.put(record.getId(), record);
+            try {
+                updateEidEvents.add(updateEidEvent(streamKey, record));
+            } catch (RuntimeException e) {
+                deadLetterStream.add(streamKey, record, deliveries(due.get(record.getId())), e);
+                acknowledged.add(record.getId());
+            }
+        }
+        LoginUpdates updates = updateLastLogins(coalesce(updateEidEvents).values());
+        acknowledged.addAll(updates.handled());
+        updates.failed().forEach((recordId, e) -> {
+            long deliveries = deliveries(due.get(recordId));
+            if (deliveries >= streamProperties.getMaxDeliveries() && !isTransient(e)) {
+                deadLetterStream.add(streamKey, records.get(recordId), deliveries, e);
+                acknowledged.add(recordId);
+            }
+        });
+        if (!acknowledged.isEmpty()) {
+            streamOperations.acknowledge(streamKey, UPDATE_LAST_LOGIN_GROUP, acknowledged.toArray(new RecordId[0]));
+        }
+        log.info("{}: Retried {} of {} pending messages in {}, {} updated, {} still failing", consumerName, claimed.size(),
+                pendingMessages.size(), streamKey, updates.handled().size(), updates.failed().size());
+    }
+
+    /**
+     * True if the failure says nothing about the record itself, so a later retry may succeed.
+     */
+    static boolean isTransient(Throwable e) {
+        if (DatabaseCircuitBreaker.isUnavailable(e)) {
+            return true;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransientDataAccessException) {
+                return true;
             }
-        } catch (Exception e) {
-            log.error("Unable to create group {} on stream {}", UPDATE_LAST_LOGIN_GROUP, UPDATE_LAST_LOGIN_STREAM);
         }
+        return false;
     }
 
-    private boolean consumerGroupExists(StreamInfo.XInfoGroups groups) {
-        return groups.stream()
-                .anyMatch(g -> g.groupName().equals(UPDATE_LAST_LOGIN_GROUP));
+    /**
+     * Deliveries including the claim made by this retry.
+     */
+    private static long deliveries(PendingMessage pendingMessage) {
+        return pendingMessage == null ? 1 : pendingMessage.getTotalDeliveryCount() + 1;
+    }
+
+    /**
+     * Collapses records for the same user and eID into one login with the latest login time.
+     */
+    protected static Map<LoginKey, CoalescedLogin> coalesce(List<ObjectRecord<String, UpdateEidMessage>> updateEidEvents) {
+        Map<LoginKey, CoalescedLogin> logins = new LinkedHashMap<>();
+        for (ObjectRecord<String, UpdateEidMessage> updateEidEvent : updateEidEvents) {
+            UpdateEidMessage event = updateEidEvent.getValue();
+            // eID names are matched ignoring case when the user is updated
+            LoginKey key = new LoginKey(event.userId(), event.eidName().toLowerCase(Locale.ROOT));
+            CoalescedLogin login = logins.computeIfAbsent(key, k -> new CoalescedLogin(event));
+            login.add(event, updateEidEvent.getId());
+        }
+        return logins;
+    }
+
+    /**
+     * Writes the logins in one transaction, or one by one if that fails. Records of logins failing are left pending.
+     */
+    protected LoginUpdates updateLastLogins(Collection<CoalescedLogin> logins) {
+        if (logins.size() > 1) {
+            try {
+                circuitBreaker.execute(() -> userService.updateLastLogins(logins.stream().map(login -> lastLogin(login.latest())).toList()));
+                return new LoginUpdates(logins.stream().flatMap(login -> login.recordIds().stream()).toList(), Map.of());
+            } catch (RuntimeException e) {
+                log.warn("Failed to update {} logins together, updating them one by one", logins.size(), e);
+            }
+        }
+        // one failing login, typically for a user deleted after logging in, must not hold back the others
+        List<RecordId> handled = new ArrayList<>();
+        Map<RecordId, RuntimeException> failed = new LinkedHashMap<>();
+        for (CoalescedLogin login : logins) {
+            if (!circuitBreaker.isCallPermitted()) {
+                // the database is down, the rest are retried once it is back
+                break;
+            }
+            try {
+                circuitBreaker.execute(() -> userService.updateLastLogins(List.of(lastLogin(login.latest()))));
+                handled.addAll(login.recordIds());
+            } catch (RuntimeException e) {
+                login.recordIds().forEach(recordId -> failed.put(recordId, e));
+                log.warn("Failed to update user {} by messages {}, leaving them pending", login.latest().userId(), login.recordIds(), e);
+            }
+        }
+        return new LoginUpdates(handled, failed);
+    }
+
+    /**
+     * The latest login of each user and eID, for login updates read without record ids.
+     */
+    protected static Collection<LastLogin> latestLogins(Collection<UpdateEidMessage> events) {
+        Map<LoginKey, LastLogin> lastLogins = new LinkedHashMap<>();
+        for (UpdateEidMessage event : events) {
+            lastLogins.merge(new LoginKey(event.userId(), event.eidName().toLowerCase(Locale.ROOT)), lastLogin(event),
+                    (previous, next) -> next.lastLoginAtEpochMs() > previous.lastLoginAtEpochMs() ? next : previous);
+        }
+        return lastLogins.values();
+    }
+
+    protected static LastLogin lastLogin(UpdateEidMessage event) {
+        return new LastLogin(event.userId(), event.eidName(), event.loginTimeInEpochMillis());
+    }
+
+    protected record LoginKey(UUID userId, String eidName) {
+    }
+
+    /**
+     * The records written, and the records failing with the reason.
+     */
+    protected record LoginUpdates(List<RecordId> handled, Map<RecordId, RuntimeException> failed) {
+    }
+
+    protected static class CoalescedLogin {
+
+        private UpdateEidMessage latest;
+        private final List<RecordId> recordIds = new ArrayList<>();
+
+        CoalescedLogin(UpdateEidMessage first) {
+            this.latest = first;
+        }
+
+        void add(UpdateEidMessage event, RecordId recordId) {
+            if (event.loginTimeInEpochMillis() > latest.loginTimeInEpochMillis()) {
+                latest = event;
+            }
+            recordIds.add(recordId);
+        }
+
+        UpdateEidMessage latest() {
+            return latest;
+        }
+
+        List<RecordId> recordIds() {
+            return recordIds;
+        }
     }
 
-    protected void handleMessageAndAcknowledge(MapRecord<String, Object, Object> updateEidMessage) {
-        Map<Object, Object> claimedMessage = updateEidMessage.getValue();
-        userService.updateUserWithEid(
-                UUID.fromString((String) claimedMessage.get("userId")),
-                Login.builder().eidName((String) claimedMessage.get("eidName")).lastLogin(Instant.ofEpochMilli(Long.parseLong((String) claimedMessage.get("loginTimeInEpochMillis")))).build()
-        );
-        updateEidCache.opsForStream().acknowledge(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, updateEidMessage.getId());
-        log.info("Message acknowledged: {}", updateEidMessage.getId());
+    /**
+     * Reads a record added by {@link CachedUserService}, when read without the object mapping of the listener container.
+     */
+    protected static ObjectRecord<String, UpdateEidMessage> updateEidEvent(String streamKey, MapRecord<String, ?, ?> updateEidMessage) {
+        Map<?, ?> value = updateEidMessage.getValue();
+        UpdateEidMessage event = new UpdateEidMessage(
+                UUID.fromString((String) value.get("userId")),
+                Long.parseLong((String) value.get("loginTimeInEpochMillis")),
+                (String) value.get("eidName"));
+        return StreamRecords.newRecord().in(streamKey).withId(updateEidMessage.getId()).ofObject(event);
     }
 
 }
@@ -1,14 +1,16 @@
 package no.idporten.userservice.data;
 
 import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
 import org.springframework.context.SmartLifecycle;
 import org.springframework.context.annotation.DependsOn;
 import org.springframework.data.redis.connection.stream.Consumer;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
+
 import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
-import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
 
 @Component
 @Slf4j
@@ -16,10 +18,12 @@ import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LO
 public class StreamConsumerManager implements SmartLifecycle {
 
     private final RedisTemplate<String, String> updateEidCache;
+    private final List<String> streamKeys;
     private volatile boolean running = false;
 
-    public StreamConsumerManager(RedisTemplate<String, String> updateEidCache) {
+    public StreamConsumerManager(RedisTemplate<String, String> updateEidCache, UpdateLastLoginStreamProperties streamProperties) {
         this.updateEidCache = updateEidCache;
+        this.streamKeys = streamProperties.streamKeys();
     }
 
     @Override
@@ -29,7 +33,9 @@ public class StreamConsumerManager implements SmartLifecycle {
 
     @Override
     public void stop() {
-        updateEidCache.opsForStream().deleteConsumer(UPDATE_LAST_LOGIN_STREAM, Consumer.from(UPDATE_LAST_LOGIN_GROUP, ConsumerNameProvider.getConsumerName()));
+        for (String streamKey : streamKeys) {
+            updateEidCache.opsForStream().deleteConsumer(streamKey, Consumer.from(UPDATE_LAST_LOGIN_GROUP, ConsumerNameProvider.getConsumerName()));
+        }
         log.info("Stopped StreamConsumerManager and removing consumer {} from Redis stream group", ConsumerNameProvider.getConsumerName());
         running = false;
     }
@@ -0,0 +1,94 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.data.message.UpdateEidMessage;
+import org.springframework.data.redis.connection.stream.ObjectRecord;
+import org.springframework.data.redis.stream.StreamListener;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the records read by the listener container to {@link UpdateEidLoginMessagesConsumer} on virtual threads, so
+ * several records are written to the database at once instead of one after the other.
+ * <p>
+ * Records of the same user are handled one at a time in the order they were read. At most max-in-flight records are
+ * handled at once, and the container thread waits for a free slot before handing over the next record, so the
+ * container does not read faster than the database connection pool can keep up with.
+ */
+@Slf4j
+public class UpdateEidLoginDispatcher implements StreamListener<String, ObjectRecord<String, UpdateEidMessage>>, AutoCloseable {
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final UpdateEidLoginMessagesConsumer messagesConsumer;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ConcurrentMap<UUID, CompletableFuture<Void>> lanes = new ConcurrentHashMap<>();
+
+    public UpdateEidLoginDispatcher(UpdateEidLoginMessagesConsumer messagesConsumer, int maxInFlight, MeterRegistry meterRegistry) {
+        this.messagesConsumer = messagesConsumer;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        Gauge.builder("user.stream.dispatcher.in-flight", this, UpdateEidLoginDispatcher::inFlight).register(meterRegistry);
+    }
+
+    @Override
+    public void onMessage(ObjectRecord<String, UpdateEidMessage> updateEidEvent) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            // the record is left pending, and retried by PendingMessagesRetryConsumer
+            Thread.currentThread().interrupt();
+            return;
+        }
+        UUID userId = updateEidEvent.getValue().userId();
+        // handled records of the user are removed below, so the lane only holds records still being handled
+        CompletableFuture<Void> handled = lanes.compute(userId, (id, previous) ->
+                (previous == null ? CompletableFuture.<Void>completedFuture(null) : previous)
+                        .thenRunAsync(() -> handle(updateEidEvent), executor));
+        handled.whenComplete((result, e) -> {
+            lanes.remove(userId, handled);
+            inFlight.release();
+        });
+    }
+
+    private void handle(ObjectRecord<String, UpdateEidMessage> updateEidEvent) {
+        try {
+            messagesConsumer.onMessage(updateEidEvent);
+        } catch (RuntimeException e) {
+            if (!messagesConsumer.recreateConsumerGroupIfMissing(e)) {
+                log.error("STREAM - Failed to handle message {} on stream {}", updateEidEvent.getId(), updateEidEvent.getStream(), e);
+            }
+        }
+    }
+
+    int inFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Lets the records being handled finish, so they are acknowledged.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Stopped handling {} login updates, they are left pending and retried", inFlight());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -1,20 +1,23 @@
 package no.idporten.userservice.data;
 
-import jakarta.annotation.PreDestroy;
-import lombok.AllArgsConstructor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
 import no.idporten.userservice.data.message.UpdateEidMessage;
-import org.springframework.data.redis.connection.stream.Consumer;
 import org.springframework.data.redis.connection.stream.ObjectRecord;
-import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.stream.StreamListener;
 import org.springframework.stereotype.Service;
 
-import java.time.Instant;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 
 import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
-import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
 
 
 @Service
@@ -24,23 +27,72 @@ public class UpdateEidLoginMessagesConsumer extends RetryConsumer implements Str
     private final DirectUserService userService;
     private final RedisTemplate<String, String> updateEidCache;
 
-    public UpdateEidLoginMessagesConsumer(RedisTemplate<String, String> updateEidCache, DirectUserService userService) {
-        super(updateEidCache, userService);
+    private final Counter processedRecords;
+    private final Counter failedRecords;
+    private final Counter coalescedRecords;
+    private final DistributionSummary batchSize;
+    private final Timer batchTimer;
+    private final Timer databaseTimer;
+    private final Timer delayTimer;
+
+    public UpdateEidLoginMessagesConsumer(RedisTemplate<String, String> updateEidCache, DirectUserService userService,
+                                          DatabaseCircuitBreaker circuitBreaker, UpdateLastLoginStreamProperties streamProperties,
+                                          MeterRegistry meterRegistry) {
+        super(updateEidCache, userService, circuitBreaker, streamProperties);
         this.userService = userService;
         this.updateEidCache = updateEidCache;
+        this.processedRecords = Counter.builder("user.stream.records").tag("result", "processed").register(meterRegistry);
+        this.failedRecords = Counter.builder("user.stream.records").tag("result", "failed").register(meterRegistry);
+        this.coalescedRecords = Counter.builder("user.stream.records.coalesced").register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("user.stream.batch.size").register(meterRegistry);
+        this.batchTimer = Timer.builder("user.stream.batch").register(meterRegistry);
+        this.databaseTimer = Timer.builder("user.stream.batch.database").register(meterRegistry);
+        this.delayTimer = Timer.builder("user.stream.delay").register(meterRegistry);
     }
 
     @Override
     public void onMessage(ObjectRecord<String, UpdateEidMessage> updateEidEvent) {
-        createConsumerGroupIfItDoesNotExist();
-
         UpdateEidMessage event = updateEidEvent.getValue();
+        recordDelay(event.loginTimeInEpochMillis());
 
-        userService.updateUserWithEid(event.userId(), Login.builder().eidName(event.eidName()).lastLogin(Instant.ofEpochMilli(event.loginTimeInEpochMillis())).build());
+        circuitBreaker.execute(() -> userService.updateLastLogins(List.of(lastLogin(event))));
         updateEidCache.opsForStream().acknowledge(UPDATE_LAST_LOGIN_GROUP, updateEidEvent);
         log.info("User {} has been updated by message {}", event.userId(), updateEidEvent.getId());
+        processedRecords.increment();
+    }
+
+    /**
+     * Updates the users in a batch read from one partition of the stream, and acknowledges the updated records in one
+     * command. Records for the same user and eID are collapsed into one login with the latest login time, and all logins
+     * are written in one transaction. Records failing are left pending for {@link PendingMessagesRetryConsumer}, and
+     * handled records are removed later by {@link UpdateLastLoginStreamTrimmer}.
+     * <p>
+     * The delay from the oldest login in the batch until it is handled, and the time spent in the database, are measured
+     * per batch.
+     */
+    public void onMessages(List<ObjectRecord<String, UpdateEidMessage>> updateEidEvents) {
+        batchSize.record(updateEidEvents.size());
+        // the oldest login in the batch, measured once per batch rather than per record
+        long oldestLogin = updateEidEvents.stream().mapToLong(event -> event.getValue().loginTimeInEpochMillis()).min().orElseThrow();
+        recordDelay(oldestLogin);
+        batchTimer.record(() -> {
+            Map<LoginKey, CoalescedLogin> logins = coalesce(updateEidEvents);
+            coalescedRecords.increment(updateEidEvents.size() - logins.size());
+            List<RecordId> handled = databaseTimer.record(() -> updateLastLogins(logins.values())).handled();
+            failedRecords.increment(updateEidEvents.size() - handled.size());
+            if (!handled.isEmpty()) {
+                String streamKey = updateEidEvents.getFirst().getStream();
+                RecordId[] recordIds = handled.toArray(new RecordId[0]);
+                updateEidCache.opsForStream().acknowledge(streamKey, UPDATE_LAST_LOGIN_GROUP, recordIds);
+                processedRecords.increment(handled.size());
+            }
+            log.info("{} of {} users have been updated by {} messages from {} to {}", handled.size(), logins.size(),
+                    updateEidEvents.size(), updateEidEvents.getFirst().getId(), updateEidEvents.getLast().getId());
+        });
+    }
 
-        updateEidCache.opsForStream().delete(updateEidEvent);
+    private void recordDelay(long loginTimeInEpochMillis) {
+        delayTimer.record(Duration.ofMillis(Math.max(0, System.currentTimeMillis() - loginTimeInEpochMillis)));
     }
 
 }
@@ -0,0 +1,125 @@
+package no.idporten.userservice.data;
+
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import no.idporten.userservice.data.message.UpdateEidMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.ObjectRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
+
+/**
+ * Reads the update-last-login stream in batches of up to batch-size records per XREADGROUP, and hands each batch to
+ * {@link UpdateEidLoginMessagesConsumer#onMessages(List)}. Each partition of the stream is read by its own thread, and
+ * the consumer group spreads the records of each partition over the pods. Replaces the listener container in
+ * {@link no.idporten.userservice.config.SubscriptionConfig} unless batch mode is turned off.
+ * <p>
+ * Reading is paused while the {@link DatabaseCircuitBreaker} is open, so new records wait in the stream instead of
+ * failing.
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+@ConditionalOnProperty(name = "digdir.streams.update-last-login.batch-enabled", havingValue = "true", matchIfMissing = true)
+public class UpdateEidLoginStreamReader implements SmartLifecycle {
+
+    private static final Duration ERROR_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration PAUSE_CHECK_INTERVAL = Duration.ofSeconds(1);
+
+    private final RedisTemplate<String, String> updateEidCache;
+    private final UpdateEidLoginMessagesConsumer messagesConsumer;
+    private final DatabaseCircuitBreaker circuitBreaker;
+    private final List<String> streamKeys;
+    private final StreamReadOptions readOptions;
+    private final Duration pollTimeout;
+
+    private volatile boolean running = false;
+    private List<Thread> readers = List.of();
+
+    public UpdateEidLoginStreamReader(RedisTemplate<String, String> updateEidCache, UpdateEidLoginMessagesConsumer messagesConsumer,
+                                      DatabaseCircuitBreaker circuitBreaker, UpdateLastLoginStreamProperties streamProperties) {
+        this.updateEidCache = updateEidCache;
+        this.messagesConsumer = messagesConsumer;
+        this.circuitBreaker = circuitBreaker;
+        this.streamKeys = streamProperties.streamKeys();
+        this.pollTimeout = streamProperties.getPollTimeout();
+        this.readOptions = StreamReadOptions.empty().count(streamProperties.getBatchSize()).block(pollTimeout);
+    }
+
+    @Override
+    public void start() {
+        messagesConsumer.createConsumerGroup();
+        running = true;
+        readers = streamKeys.stream()
+                .map(streamKey -> Thread.ofVirtual().name("update-last-login-reader-" + streamKey).start(() -> poll(streamKey)))
+                .toList();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            // lets the batches being processed finish, so they are acknowledged
+            for (Thread reader : readers) {
+                reader.join(pollTimeout.plusSeconds(10));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    void poll(String streamKey) {
+        Consumer consumer = Consumer.from(UPDATE_LAST_LOGIN_GROUP, ConsumerNameProvider.getConsumerName());
+        StreamOffset<String> offset = StreamOffset.create(streamKey, ReadOffset.lastConsumed());
+        while (running) {
+            if (!circuitBreaker.isCallPermitted()) {
+                if (!sleep(PAUSE_CHECK_INTERVAL)) {
+                    break;
+                }
+                continue;
+            }
+            try {
+                List<ObjectRecord<String, UpdateEidMessage>> records = updateEidCache.opsForStream().read(UpdateEidMessage.class, consumer, readOptions, offset);
+                if (records != null && !records.isEmpty()) {
+                    messagesConsumer.onMessages(records);
+                }
+            } catch (RuntimeException e) {
+                if (!running) {
+                    break;
+                }
+                if (!messagesConsumer.recreateConsumerGroupIfMissing(e)) {
+                    log.warn("Failed to read from stream {}, retrying in {}", streamKey, ERROR_BACKOFF, e);
+                }
+                if (!sleep(ERROR_BACKOFF)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean sleep(Duration duration) {
+        try {
+            Thread.sleep(duration);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
+
+/**
+ * Samples how far behind the consumer group is on each update-last-login partition, instead of measuring every record.
+ * <p>
+ * Exports the length of each partition, the pending records of each consumer, the age of the oldest pending record, the
+ * lag, which is the age of the oldest record not yet delivered to the group, and the backlog of records pending or not
+ * yet delivered. Warns when the backlog gets close to max-length, where the oldest unhandled records start being
+ * dropped by the producer. Every pod samples the same partitions, so the values should be aggregated with max rather
+ * than sum. Throughput and database time per batch are measured by {@link UpdateEidLoginMessagesConsumer}.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class UpdateLastLoginStreamMetrics {
+
+    private final RedisTemplate<String, String> updateEidCache;
+    private final UpdateLastLoginStreamProperties streamProperties;
+    private final MeterRegistry meterRegistry;
+    private final Clock clock;
+
+    private final Map<String, AtomicLong> lengths = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> backlogs = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> oldestPendingAges = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> lags = new ConcurrentHashMap<>();
+    private final MultiGauge pendingPerConsumer;
+
+    public UpdateLastLoginStreamMetrics(RedisTemplate<String, String> updateEidCache, UpdateLastLoginStreamProperties streamProperties, MeterRegistry meterRegistry) {
+        this(updateEidCache, streamProperties, meterRegistry, Clock.systemUTC());
+    }
+
+    UpdateLastLoginStreamMetrics(RedisTemplate<String, String> updateEidCache, UpdateLastLoginStreamProperties streamProperties, MeterRegistry meterRegistry, Clock clock) {
+        this.updateEidCache = updateEidCache;
+        this.streamProperties = streamProperties;
+        this.meterRegistry = meterRegistry;
+        this.clock = clock;
+        this.pendingPerConsumer = MultiGauge.builder("user.stream.pending").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${digdir.streams.update-last-login.metrics-interval:15s}")
+    public void sample() {
+        List<MultiGauge.Row<?>> pendingRows = new ArrayList<>();
+        for (String streamKey : streamProperties.streamKeys()) {
+            try {
+                sample(streamKey, pendingRows);
+            } catch (RuntimeException e) {
+                log.debug("Failed to sample metrics of stream {}", streamKey, e);
+            }
+        }
+        // consumers gone since the last sample are removed
+        pendingPerConsumer.register(pendingRows, true);
+    }
+
+    /**
+     * The largest lag of the partitions in the last sample.
+     */
+    public Duration maxLag() {
+        return Duration.ofMillis(lags.values().stream().mapToLong(AtomicLong::get).max().orElse(0));
+    }
+
+    void sample(String streamKey, List<MultiGauge.Row<?>> pendingRows) {
+        var streamOperations = updateEidCache.opsForStream();
+        Long length = streamOperations.size(streamKey);
+        gauge(lengths, "user.stream.length", streamKey).set(length == null ? 0 : length);
+
+        StreamInfo.XInfoGroup group = streamOperations.groups(streamKey).stream()
+                .filter(g -> g.groupName().equals(UPDATE_LAST_LOGIN_GROUP))
+                .findFirst()
+                .orElse(null);
+        if (group == null) {
+            return;
+        }
+        long now = clock.millis();
+
+        PendingMessagesSummary pending = streamOperations.pending(streamKey, UPDATE_LAST_LOGIN_GROUP);
+        long oldestPendingAge = 0;
+        if (pending != null && pending.getTotalPendingMessages() > 0) {
+            oldestPendingAge = Math.max(0, now - pending.minRecordId().getTimestamp());
+            pending.getPendingMessagesPerConsumer().forEach((consumer, count) ->
+                    pendingRows.add(MultiGauge.Row.of(Tags.of("stream", streamKey, "consumer", consumer), count)));
+        }
+        ageGauge(oldestPendingAges, "user.stream.pending.oldest", streamKey).set(oldestPendingAge);
+
+        long backlog = (pending == null ? 0 : pending.getTotalPendingMessages()) + undelivered(group);
+        gauge(backlogs, "user.stream.backlog", streamKey).set(backlog);
+        if (streamProperties.getMaxLength() > 0 && backlog >= streamProperties.getMaxLength() * streamProperties.getBacklogWarningRatio()) {
+            log.warn("Stream {} has {} unhandled records, the oldest are dropped at {}", streamKey, backlog, streamProperties.getMaxLength());
+        }
+
+        List<MapRecord<String, Object, Object>> undelivered = streamOperations.range(streamKey,
+                Range.rightUnbounded(Range.Bound.exclusive(group.lastDeliveredId())), Limit.limit().count(1));
+        long lag = undelivered == null || undelivered.isEmpty() ? 0 : Math.max(0, now - undelivered.getFirst().getId().getTimestamp());
+        ageGauge(lags, "user.stream.lag", streamKey).set(lag);
+    }
+
+    /**
+     * Records not yet delivered to the group. Redis 7 reports this as the group lag, which is missing on older versions
+     * or when Redis can not tell.
+     */
+    private static long undelivered(StreamInfo.XInfoGroup group) {
+        return group.getRaw().get("lag") instanceof Number lag ? lag.longValue() : 0;
+    }
+
+    private AtomicLong gauge(Map<String, AtomicLong> gauges, String name, String streamKey) {
+        return gauges.computeIfAbsent(streamKey, key -> {
+            AtomicLong value = new AtomicLong();
+            Gauge.builder(name, value, AtomicLong::get).tag("stream", key).register(meterRegistry);
+            return value;
+        });
+    }
+
+    private AtomicLong ageGauge(Map<String, AtomicLong> gauges, String name, String streamKey) {
+        return gauges.computeIfAbsent(streamKey, key -> {
+            AtomicLong millis = new AtomicLong();
+            TimeGauge.builder(name, millis, TimeUnit.MILLISECONDS, AtomicLong::get).tag("stream", key).register(meterRegistry);
+            return millis;
+        });
+    }
+
+}
@@ -0,0 +1,77 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.RedisStreamCommands.TrimOptions;
+import org.springframework.data.redis.connection.RedisStreamCommands.XTrimOptions;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
+
+/**
+ * Removes records handled by the consumer group from the update-last-login partitions, instead of deleting records one
+ * by one as they are handled. Everything older than both the last record delivered to the group and the oldest record
+ * still pending is trimmed, with approximate trimming so Redis only drops whole stream nodes. The backlog of each
+ * partition is sampled by {@link UpdateLastLoginStreamMetrics}.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class UpdateLastLoginStreamTrimmer {
+
+    private static final Comparator<RecordId> RECORD_ID_ORDER = Comparator.comparing(RecordId::getTimestamp).thenComparing(RecordId::getSequence);
+
+    private final RedisTemplate<String, String> updateEidCache;
+    private final UpdateLastLoginStreamProperties streamProperties;
+    private final Counter trimmedRecords;
+
+    public UpdateLastLoginStreamTrimmer(RedisTemplate<String, String> updateEidCache, UpdateLastLoginStreamProperties streamProperties, MeterRegistry meterRegistry) {
+        this.updateEidCache = updateEidCache;
+        this.streamProperties = streamProperties;
+        this.trimmedRecords = Counter.builder("user.stream.trimmed").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${digdir.streams.update-last-login.trim-interval:1m}")
+    public void trim() {
+        for (String streamKey : streamProperties.streamKeys()) {
+            try {
+                trim(streamKey);
+            } catch (RuntimeException e) {
+                log.warn("Failed to trim stream {}", streamKey, e);
+            }
+        }
+    }
+
+    void trim(String streamKey) {
+        var streamOperations = updateEidCache.opsForStream();
+        StreamInfo.XInfoGroup group = streamOperations.groups(streamKey).stream()
+                .filter(g -> g.groupName().equals(UPDATE_LAST_LOGIN_GROUP))
+                .findFirst()
+                .orElse(null);
+        if (group == null) {
+            // nothing is known to be handled without the group
+            return;
+        }
+        PendingMessagesSummary pending = streamOperations.pending(streamKey, UPDATE_LAST_LOGIN_GROUP);
+        RecordId minId = RecordId.of(group.lastDeliveredId());
+        if (pending != null && pending.getTotalPendingMessages() > 0 && RECORD_ID_ORDER.compare(pending.minRecordId(), minId) < 0) {
+            minId = pending.minRecordId();
+        }
+        Long trimmed = streamOperations.trim(streamKey, XTrimOptions.trim(TrimOptions.minId(minId).approximate()));
+        if (trimmed != null && trimmed > 0) {
+            trimmedRecords.increment(trimmed);
+            log.debug("Trimmed {} handled records older than {} from stream {}", trimmed, minId, streamKey);
+        }
+    }
+
+}
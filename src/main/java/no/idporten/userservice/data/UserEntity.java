@@ -43,14 +43,11 @@ public class UserEntity {
     @Column(name = "help_desk_case_references")
     private String helpDeskCaseReferences;
 
-    @OneToOne
+    @OneToOne(fetch = FetchType.LAZY)
     @JoinColumn(columnDefinition = "char(36)", name = "previous_user")
     @JdbcTypeCode(SqlTypes.CHAR)
     private UserEntity previousUser;
 
-    @OneToOne(mappedBy = "previousUser")
-    private UserEntity nextUser;
-
     @OneToMany(mappedBy = "user", orphanRemoval = true, cascade = CascadeType.ALL, fetch = FetchType.LAZY)
     private List<LoginEntity> logins = new java.util.ArrayList<>();
 
@@ -69,7 +66,7 @@ public class UserEntity {
         setLogins(logins);
     }
 
-    public UserEntity(UUID uuid, String personIdentifier, long userCreatedAtEpochMs, long userLastUpdatedAtEpochMs, Boolean active, String closedCode, long closedCodeUpdatedAtEpochMs, String helpDeskCaseReferences, List<LoginEntity> logins, UserEntity previousUser, UserEntity nextUser) {
+    public UserEntity(UUID uuid, String personIdentifier, long userCreatedAtEpochMs, long userLastUpdatedAtEpochMs, Boolean active, String closedCode, long closedCodeUpdatedAtEpochMs, String helpDeskCaseReferences, List<LoginEntity> logins, UserEntity previousUser) {
         this.uuid = uuid;
         this.personIdentifier = personIdentifier;
         this.userCreatedAtEpochMs = userCreatedAtEpochMs;
@@ -80,7 +77,6 @@ public class UserEntity {
         this.helpDeskCaseReferences = helpDeskCaseReferences;
         setLogins(logins);
         setPreviousUser(previousUser);
-        setNextUser(nextUser);
     }
 
     public UUID getUuid() {
@@ -162,14 +158,6 @@ public class UserEntity {
         this.previousUser = previousUser;
     }
 
-    public UserEntity getNextUser() {
-        return nextUser;
-    }
-
-    public void setNextUser(UserEntity nextUser) {
-        this.nextUser = nextUser;
-    }
-
     @PrePersist
     public void onPrePersist() {
         userCreatedAtEpochMs = Instant.now().toEpochMilli();
@@ -193,7 +181,6 @@ public class UserEntity {
         private String helpDeskCaseReferences;
         private boolean active;
         private UserEntity previousUser;
-        private UserEntity nextUser;
         private List<LoginEntity> logins;
 
         public UserEntityBuilder uuid(UUID uuid) {
@@ -231,10 +218,6 @@ public class UserEntity {
             this.previousUser = previousUser;
             return this;
         }
-        public UserEntityBuilder nextUser(UserEntity nextUser){
-            this.nextUser = nextUser;
-            return this;
-        }
 
         public UserEntityBuilder logins(List<LoginEntity> logins){
             this.logins = logins;
@@ -242,7 +225,7 @@ public class UserEntity {
         }
 
         public UserEntity build() {
-            return new UserEntity(uuid, personIdentifier, 0L, 0L, active, closedCode, closedCodeUpdatedAtEpochMs, helpDeskCaseReferences, logins, previousUser, nextUser);
+            return new UserEntity(uuid, personIdentifier, 0L, 0L, active, closedCode, closedCodeUpdatedAtEpochMs, helpDeskCaseReferences, logins, previousUser);
         }
     }
 }
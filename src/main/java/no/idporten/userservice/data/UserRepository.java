@@ -1,17 +1,38 @@
 package no.idporten.userservice.data;
 
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
 @Repository
 public interface UserRepository extends JpaRepository<UserEntity, UUID>, JpaSpecificationExecutor<UserEntity> {
 
+    @EntityGraph(attributePaths = "logins")
     Optional<UserEntity> findByUuid(UUID uuid);
 
+    @EntityGraph(attributePaths = "logins")
     Optional<UserEntity> findByPersonIdentifier(String personIdentifier);
 
+    @EntityGraph(attributePaths = "logins")
+    List<UserEntity> findByUuidIn(Collection<UUID> uuids);
+
+    /**
+     * Follows the previous users of the user, returning the uuid of the user followed by the uuids of the users it has
+     * replaced, newest first. At most max-depth previous users are followed.
+     */
+    @Query(value = "WITH RECURSIVE history (uuid, previous_user, depth) AS ("
+            + "SELECT uuid, previous_user, 0 FROM idp_user WHERE uuid = :uuid "
+            + "UNION ALL "
+            + "SELECT u.uuid, u.previous_user, h.depth + 1 FROM idp_user u JOIN history h ON u.uuid = h.previous_user WHERE h.depth < :maxDepth"
+            + ") SELECT uuid FROM history ORDER BY depth", nativeQuery = true)
+    List<String> findHistory(@Param("uuid") String uuid, @Param("maxDepth") int maxDepth);
+
 }
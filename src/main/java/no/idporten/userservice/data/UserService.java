@@ -5,7 +5,9 @@ import java.util.UUID;
 
 public interface UserService {
     IDPortenUser findUser(UUID uuid);
+    IDPortenUser findUser(UUID uuid, FetchPlan fetchPlan);
     Optional<IDPortenUser> searchForUser(String personIdentifier);
+    Optional<IDPortenUser> searchForUser(String personIdentifier, FetchPlan fetchPlan);
     IDPortenUser createUser(IDPortenUser idPortenUser);
     IDPortenUser createStatusUser(IDPortenUser idPortenUser);
     IDPortenUser updateUser(IDPortenUser idPortenUser);
@@ -29,4 +29,8 @@ public class UserServiceException extends ApiException {
         return new UserServiceException("invalid_request", message, HttpStatus.BAD_REQUEST);
     }
 
+    public static UserServiceException deadLetterNotReplayable(String message) {
+        return new UserServiceException("invalid_request", message, HttpStatus.CONFLICT);
+    }
+
 }
@@ -0,0 +1,120 @@
+package no.idporten.userservice.data.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values above a size threshold before they are written to Redis.
+ * <p>
+ * Compressed values start with {@link #HEADER} followed by the uncompressed length, and values without it are handed
+ * to the wrapped serializer as they are. Existing entries are therefore read unchanged, and turning compression off
+ * again is safe as long as this serializer stays in front of the wrapped one. The wrapped serializer must never
+ * produce values starting with {@link #HEADER}.
+ */
+public class CompressingRedisSerializer<T> implements RedisSerializer<T> {
+
+    static final byte HEADER = (byte) 0xC5;
+
+    private static final int HEADER_LENGTH = 5;
+    private static final int MAX_UNCOMPRESSED_LENGTH = 16 * 1024 * 1024;
+
+    private final RedisSerializer<T> delegate;
+    private final boolean enabled;
+    private final int threshold;
+
+    private final Counter bytesSaved;
+    private final Timer compressTimer;
+    private final Timer decompressTimer;
+
+    public CompressingRedisSerializer(RedisSerializer<T> delegate, boolean enabled, int threshold, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.bytesSaved = Counter.builder("user.cache.compression.saved").baseUnit("bytes").register(meterRegistry);
+        this.compressTimer = Timer.builder("user.cache.compression").tag("operation", "compress").register(meterRegistry);
+        this.decompressTimer = Timer.builder("user.cache.compression").tag("operation", "decompress").register(meterRegistry);
+    }
+
+    @Override
+    public byte[] serialize(T value) throws SerializationException {
+        byte[] bytes = delegate.serialize(value);
+        if (!enabled || bytes == null || bytes.length < threshold) {
+            return bytes;
+        }
+        byte[] compressed = compressTimer.record(() -> compress(bytes));
+        if (compressed.length >= bytes.length) {
+            return bytes;
+        }
+        bytesSaved.increment(bytes.length - compressed.length);
+        return compressed;
+    }
+
+    @Override
+    public T deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0 || bytes[0] != HEADER) {
+            return delegate.deserialize(bytes);
+        }
+        return delegate.deserialize(decompressTimer.record(() -> decompress(bytes)));
+    }
+
+    private static byte[] compress(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + HEADER_LENGTH);
+            out.write(HEADER);
+            out.write(bytes.length >>> 24);
+            out.write(bytes.length >>> 16);
+            out.write(bytes.length >>> 8);
+            out.write(bytes.length);
+            byte[] buffer = new byte[Math.min(bytes.length, 8192)];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] bytes) {
+        if (bytes.length < HEADER_LENGTH) {
+            throw new SerializationException("Truncated compressed value");
+        }
+        int length = ((bytes[1] & 0xFF) << 24) | ((bytes[2] & 0xFF) << 16) | ((bytes[3] & 0xFF) << 8) | (bytes[4] & 0xFF);
+        if (length < 0 || length > MAX_UNCOMPRESSED_LENGTH) {
+            throw new SerializationException("Invalid length of compressed value: " + length);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+            byte[] uncompressed = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(uncompressed, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != length) {
+                throw new SerializationException("Truncated compressed value");
+            }
+            return uncompressed;
+        } catch (DataFormatException e) {
+            throw new SerializationException("Corrupt compressed value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
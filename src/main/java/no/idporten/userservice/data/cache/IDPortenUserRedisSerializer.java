@@ -0,0 +1,330 @@
+package no.idporten.userservice.data.cache;
+
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.IDPortenUser;
+import no.idporten.userservice.data.Login;
+import org.springframework.data.redis.serializer.JacksonJsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Serializes cached users either as JSON or in a compact binary format, and reads both.
+ * <p>
+ * The binary format starts with a magic byte that can never start a JSON document, followed by a format version.
+ * Instants are stored as epoch millis and all numbers and lengths as varints. Well known eid names are stored as a
+ * single byte. Entries written in a format version this serializer does not know are treated as cache misses, so a
+ * rollback to an older version of this serializer never fails on entries written by a newer one. Versions from before
+ * this serializer can not read the binary format at all.
+ * <p>
+ * To evolve the format, bump {@link #VERSION}, keep reading the older versions, and only append to
+ * {@link #KNOWN_EID_NAMES}.
+ */
+public class IDPortenUserRedisSerializer implements RedisSerializer<IDPortenUser> {
+
+    static final byte MAGIC = (byte) 0xB5;
+    static final byte VERSION = 1;
+
+    /**
+     * Index + 1 is written in place of the name. Never reorder or remove entries, only append.
+     */
+    static final List<String> KNOWN_EID_NAMES = List.of("MinID", "BankID", "Buypass", "Commfides", "eIDAS");
+
+    private static final int ACTIVE = 1;
+    private static final int ID = 1 << 1;
+    private static final int PID = 1 << 2;
+    private static final int CREATED = 1 << 3;
+    private static final int LAST_UPDATED = 1 << 4;
+    private static final int CLOSED_CODE = 1 << 5;
+    private static final int CLOSED_CODE_LAST_UPDATED = 1 << 6;
+    private static final int PREVIOUS_USER = 1 << 7;
+
+    private static final int LOGIN_ID = 1;
+    private static final int LOGIN_EID_NAME = 1 << 1;
+    private static final int LOGIN_LAST_LOGIN = 1 << 2;
+    private static final int LOGIN_FIRST_LOGIN = 1 << 3;
+
+    private final boolean writeBinary;
+    private final JacksonJsonRedisSerializer<IDPortenUser> jsonSerializer = new JacksonJsonRedisSerializer<>(IDPortenUser.class);
+
+    public IDPortenUserRedisSerializer(UserCacheProperties.Serializer format) {
+        this.writeBinary = format == UserCacheProperties.Serializer.BINARY;
+    }
+
+    @Override
+    public byte[] serialize(IDPortenUser user) throws SerializationException {
+        if (user == null) {
+            return null;
+        }
+        if (!writeBinary) {
+            return jsonSerializer.serialize(user);
+        }
+        Writer out = new Writer();
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        writeUser(out, user);
+        return out.toByteArray();
+    }
+
+    @Override
+    public IDPortenUser deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (bytes[0] != MAGIC) {
+            return jsonSerializer.deserialize(bytes);
+        }
+        if (bytes.length < 2 || bytes[1] != VERSION) {
+            // written by a newer version of the service, read it from the database instead
+            return null;
+        }
+        try {
+            Reader in = new Reader(bytes, 2);
+            return readUser(in);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new SerializationException("Truncated user in cache", e);
+        }
+    }
+
+    private void writeUser(Writer out, IDPortenUser user) {
+        int flags = (user.isActive() ? ACTIVE : 0)
+                | (user.getId() != null ? ID : 0)
+                | (user.getPid() != null ? PID : 0)
+                | (user.getCreated() != null ? CREATED : 0)
+                | (user.getLastUpdated() != null ? LAST_UPDATED : 0)
+                | (user.getClosedCode() != null ? CLOSED_CODE : 0)
+                | (user.getClosedCodeLastUpdated() != null ? CLOSED_CODE_LAST_UPDATED : 0)
+                | (user.getPreviousUser() != null ? PREVIOUS_USER : 0);
+        out.writeVarLong(flags);
+        if (user.getId() != null) {
+            out.writeFixedLong(user.getId().getMostSignificantBits());
+            out.writeFixedLong(user.getId().getLeastSignificantBits());
+        }
+        if (user.getPid() != null) {
+            out.writeString(user.getPid());
+        }
+        if (user.getCreated() != null) {
+            out.writeInstant(user.getCreated());
+        }
+        if (user.getLastUpdated() != null) {
+            out.writeInstant(user.getLastUpdated());
+        }
+        if (user.getClosedCode() != null) {
+            out.writeString(user.getClosedCode());
+        }
+        if (user.getClosedCodeLastUpdated() != null) {
+            out.writeInstant(user.getClosedCodeLastUpdated());
+        }
+        if (user.getPreviousUser() != null) {
+            writeUser(out, user.getPreviousUser());
+        }
+        List<String> helpDeskCaseReferences = user.getHelpDeskCaseReferences() == null ? List.of() : user.getHelpDeskCaseReferences();
+        out.writeVarLong(helpDeskCaseReferences.size());
+        helpDeskCaseReferences.forEach(out::writeString);
+        List<Login> logins = user.getLogins() == null ? List.of() : user.getLogins();
+        out.writeVarLong(logins.size());
+        logins.forEach(login -> writeLogin(out, login));
+    }
+
+    private IDPortenUser readUser(Reader in) {
+        int flags = (int) in.readVarLong();
+        IDPortenUser user = new IDPortenUser();
+        user.setActive((flags & ACTIVE) != 0);
+        if ((flags & ID) != 0) {
+            user.setId(new UUID(in.readFixedLong(), in.readFixedLong()));
+        }
+        if ((flags & PID) != 0) {
+            user.setPid(in.readString());
+        }
+        if ((flags & CREATED) != 0) {
+            user.setCreated(in.readInstant());
+        }
+        if ((flags & LAST_UPDATED) != 0) {
+            user.setLastUpdated(in.readInstant());
+        }
+        if ((flags & CLOSED_CODE) != 0) {
+            user.setClosedCode(in.readString());
+        }
+        if ((flags & CLOSED_CODE_LAST_UPDATED) != 0) {
+            user.setClosedCodeLastUpdated(in.readInstant());
+        }
+        if ((flags & PREVIOUS_USER) != 0) {
+            user.setPreviousUser(readUser(in));
+        }
+        int helpDeskCaseReferences = (int) in.readVarLong();
+        if (helpDeskCaseReferences == 0) {
+            user.setHelpDeskCaseReferences(Collections.emptyList());
+        } else {
+            String[] references = new String[helpDeskCaseReferences];
+            for (int i = 0; i < helpDeskCaseReferences; i++) {
+                references[i] = in.readString();
+            }
+            user.setHelpDeskCaseReferences(Arrays.asList(references));
+        }
+        int logins = (int) in.readVarLong();
+        if (logins == 0) {
+            user.setLogins(Collections.emptyList());
+        } else {
+            List<Login> userLogins = new ArrayList<>(logins);
+            for (int i = 0; i < logins; i++) {
+                userLogins.add(readLogin(in));
+            }
+            user.setLogins(userLogins);
+        }
+        return user;
+    }
+
+    private void writeLogin(Writer out, Login login) {
+        int flags = (login.getId() != null ? LOGIN_ID : 0)
+                | (login.getEidName() != null ? LOGIN_EID_NAME : 0)
+                | (login.getLastLogin() != null ? LOGIN_LAST_LOGIN : 0)
+                | (login.getFirstLogin() != null ? LOGIN_FIRST_LOGIN : 0);
+        out.writeVarLong(flags);
+        if (login.getId() != null) {
+            out.writeZigZagLong(login.getId());
+        }
+        if (login.getEidName() != null) {
+            int known = KNOWN_EID_NAMES.indexOf(login.getEidName());
+            out.writeVarLong(known + 1);
+            if (known < 0) {
+                out.writeString(login.getEidName());
+            }
+        }
+        if (login.getLastLogin() != null) {
+            out.writeInstant(login.getLastLogin());
+        }
+        if (login.getFirstLogin() != null) {
+            out.writeInstant(login.getFirstLogin());
+        }
+    }
+
+    private Login readLogin(Reader in) {
+        int flags = (int) in.readVarLong();
+        Login login = new Login();
+        if ((flags & LOGIN_ID) != 0) {
+            login.setId(in.readZigZagLong());
+        }
+        if ((flags & LOGIN_EID_NAME) != 0) {
+            int known = (int) in.readVarLong();
+            login.setEidName(known == 0 ? in.readString() : KNOWN_EID_NAMES.get(known - 1));
+        }
+        if ((flags & LOGIN_LAST_LOGIN) != 0) {
+            login.setLastLogin(in.readInstant());
+        }
+        if ((flags & LOGIN_FIRST_LOGIN) != 0) {
+            login.setFirstLogin(in.readInstant());
+        }
+        return login;
+    }
+
+    private static final class Writer {
+
+        private byte[] buffer = new byte[128];
+        private int position;
+
+        void writeByte(int b) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) b;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeZigZagLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeFixedLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeInstant(Instant instant) {
+            writeZigZagLong(instant.toEpochMilli());
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void ensureCapacity(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new SerializationException("Malformed varint in cached user");
+        }
+
+        long readZigZagLong() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readFixedLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        Instant readInstant() {
+            return Instant.ofEpochMilli(readZigZagLong());
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            if (length < 0 || position + length > buffer.length) {
+                throw new SerializationException("Malformed string in cached user");
+            }
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package no.idporten.userservice.data.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tells whether a key has been invalidated since a value for it was read, so a value read before an invalidation is
+ * not put back into a local cache after it.
+ * <p>
+ * Invalidations are numbered, and the number of the last invalidation is kept per stripe of keys. A stamp is the
+ * number of the last invalidation when the read was sent, and only invalidations of keys in the same stripe make a
+ * read stale, so invalidating one user does not keep other users out of the cache.
+ */
+class InvalidationStamps {
+
+    private static final int STRIPES = 4096;
+
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLongArray invalidated = new AtomicLongArray(STRIPES);
+    private final AtomicLong allInvalidated = new AtomicLong();
+
+    /**
+     * Take a stamp before reading a value, and check it with {@link #invalidatedSince(long, Object)} before keeping it.
+     */
+    long stamp() {
+        return invalidations.get();
+    }
+
+    /**
+     * Marks the key as invalidated. Call it before removing the key from the cache.
+     */
+    void invalidate(Object key) {
+        long invalidation = invalidations.incrementAndGet();
+        invalidated.accumulateAndGet(stripe(key), invalidation, Math::max);
+    }
+
+    /**
+     * Marks every key as invalidated. Call it before emptying the cache.
+     */
+    void invalidateAll() {
+        allInvalidated.accumulateAndGet(invalidations.incrementAndGet(), Math::max);
+    }
+
+    boolean invalidatedSince(long stamp, Object key) {
+        return allInvalidated.get() > stamp || invalidated.get(stripe(key)) > stamp;
+    }
+
+    private static int stripe(Object key) {
+        return Math.floorMod(key.hashCode(), STRIPES);
+    }
+
+}
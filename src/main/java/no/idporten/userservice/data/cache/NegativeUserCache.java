@@ -0,0 +1,84 @@
+package no.idporten.userservice.data.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UserCacheProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Remembers person identifiers without a user for a short while, so repeated searches for users that do not exist
+ * (typically first time logins) do not all go to the database.
+ * <p>
+ * A marker is either absent or present. Creating a user overwrites the marker with present, and absent is only written
+ * if there is no marker, so a search that read the database before the user was created can not hide the new user.
+ * Both markers expire after the same short time to live.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class NegativeUserCache {
+
+    static final String KEY_PREFIX = "absent:";
+    static final String ABSENT = "1";
+    static final String PRESENT = "0";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final boolean enabled;
+    private final Duration timeToLive;
+
+    private final Counter hits;
+
+    public NegativeUserCache(StringRedisTemplate stringRedisTemplate, UserCacheProperties userCacheProperties, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.enabled = userCacheProperties.getNegativeCache().isEnabled();
+        this.timeToLive = userCacheProperties.getNegativeCache().getTimeToLive();
+        this.hits = Counter.builder("user.cache.negative.hits").register(meterRegistry);
+    }
+
+    public boolean isAbsent(String personIdentifier) {
+        if (!enabled) {
+            return false;
+        }
+        try {
+            boolean absent = ABSENT.equals(stringRedisTemplate.opsForValue().get(KEY_PREFIX + personIdentifier));
+            if (absent) {
+                hits.increment();
+            }
+            return absent;
+        } catch (RuntimeException e) {
+            log.warn("Failed to read negative cache for user", e);
+            return false;
+        }
+    }
+
+    public void markAbsent(String personIdentifier) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForValue().setIfAbsent(KEY_PREFIX + personIdentifier, ABSENT, timeToLive);
+        } catch (RuntimeException e) {
+            log.warn("Failed to update negative cache for user", e);
+        }
+    }
+
+    /**
+     * Call before the transaction creating the user commits, searches racing with the commit may otherwise mark it absent.
+     */
+    public void markPresent(String personIdentifier) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForValue().set(KEY_PREFIX + personIdentifier, PRESENT, timeToLive);
+        } catch (RuntimeException e) {
+            log.warn("Failed to update negative cache for user", e);
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+package no.idporten.userservice.data.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.lettuce.core.RedisChannelHandler;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisConnectionStateListener;
+import io.lettuce.core.TrackingArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.push.PushMessage;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.IDPortenUser;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceExceptionConverter;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Reads the user caches through Redis server-assisted client side caching (RESP3 client tracking). Values read on a
+ * dedicated tracking connection are kept in the pod, and Redis pushes an invalidation on that connection as soon as a
+ * key the pod has read is changed, deleted or expires.
+ * <p>
+ * Like the near cache, a value is only kept if no invalidation of its key has arrived since the read was sent. The local values
+ * are dropped and bypassed while the tracking connection is down, since invalidations are lost while disconnected.
+ * Lettuce exceptions are translated to {@link DataAccessException}, as for reads through a {@link RedisTemplate}.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class TrackingUserCache implements RedisConnectionStateListener {
+
+    static final String INVALIDATE = "invalidate";
+
+    private static final LettuceExceptionConverter EXCEPTION_CONVERTER = new LettuceExceptionConverter();
+
+    private final boolean enabled;
+    private final RedisSerializer<?> userSerializer;
+    private final Cache<String, IDPortenUser> users;
+    private final Cache<String, String> pids;
+    private final InvalidationStamps invalidations = new InvalidationStamps();
+    private final RedisClient redisClient;
+    private final StatefulRedisConnection<String, byte[]> connection;
+    private volatile boolean tracking;
+
+    public TrackingUserCache(UserCacheProperties userCacheProperties, RedisConnectionFactory rcf,
+                             RedisTemplate<String, IDPortenUser> idportenUserCache, MeterRegistry meterRegistry) {
+        UserCacheProperties.ClientTracking properties = userCacheProperties.getClientTracking();
+        this.enabled = properties.isEnabled();
+        this.userSerializer = idportenUserCache.getValueSerializer();
+        this.users = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumSize())
+                .recordStats()
+                .build();
+        this.pids = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumSize())
+                .recordStats()
+                .build();
+        if (!enabled) {
+            this.redisClient = null;
+            this.connection = null;
+            log.info("Client side caching of users is disabled");
+            return;
+        }
+        if (!(rcf instanceof LettuceConnectionFactory lettuceConnectionFactory)
+                || !(lettuceConnectionFactory.getRequiredNativeClient() instanceof RedisClient client)) {
+            throw new IllegalStateException("Client side caching of users requires Lettuce connected to a standalone Redis");
+        }
+        CaffeineCacheMetrics.monitor(meterRegistry, users, "idportenUserTrackingCache");
+        CaffeineCacheMetrics.monitor(meterRegistry, pids, "uuidToUseridTrackingCache");
+        this.redisClient = client;
+        this.connection = client.connect(RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE));
+        this.connection.addListener(this::onPushMessage);
+        this.redisClient.addListener(this);
+        this.connection.sync().clientTracking(TrackingArgs.Builder.enabled());
+        this.tracking = true;
+        log.info("Client side caching of users is enabled");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public IDPortenUser getUser(String personIdentifier) {
+        IDPortenUser user = users.getIfPresent(personIdentifier);
+        if (user != null) {
+            return user.copy();
+        }
+        long stamp = invalidations.stamp();
+        byte[] value = get(personIdentifier);
+        if (value == null) {
+            return null;
+        }
+        user = (IDPortenUser) userSerializer.deserialize(value);
+        if (user != null && keep(stamp, personIdentifier)) {
+            users.put(personIdentifier, user.copy());
+            dropIfInvalidated(stamp, personIdentifier);
+        }
+        return user;
+    }
+
+    public String getPid(UUID uuid) {
+        String key = uuid.toString();
+        String pid = pids.getIfPresent(key);
+        if (pid != null) {
+            return pid;
+        }
+        long stamp = invalidations.stamp();
+        byte[] value = get(key);
+        if (value == null) {
+            return null;
+        }
+        pid = new String(value, StandardCharsets.UTF_8);
+        if (keep(stamp, key)) {
+            pids.put(key, pid);
+            dropIfInvalidated(stamp, key);
+        }
+        return pid;
+    }
+
+    private byte[] get(String key) {
+        try {
+            return connection.sync().get(key);
+        } catch (RuntimeException e) {
+            DataAccessException translated = EXCEPTION_CONVERTER.translateExceptionIfPossible(e);
+            throw translated != null ? translated : e;
+        }
+    }
+
+    private boolean keep(long stamp, String key) {
+        return tracking && !invalidations.invalidatedSince(stamp, key);
+    }
+
+    private void dropIfInvalidated(long stamp, String key) {
+        // an invalidation may have slipped in between the check and the put
+        if (invalidations.invalidatedSince(stamp, key)) {
+            invalidate(key);
+        }
+    }
+
+    void onPushMessage(PushMessage message) {
+        if (!INVALIDATE.equals(message.getType())) {
+            return;
+        }
+        Object keys = message.getContent(StringCodec.UTF8::decodeKey).get(1);
+        if (keys instanceof List<?> invalidatedKeys) {
+            invalidatedKeys.forEach(key -> invalidate(String.valueOf(key)));
+        } else {
+            // a null key list is sent when the database is flushed
+            invalidateAll();
+        }
+    }
+
+    private void invalidate(String key) {
+        invalidations.invalidate(key);
+        users.invalidate(key);
+        pids.invalidate(key);
+    }
+
+    private void invalidateAll() {
+        invalidations.invalidateAll();
+        users.invalidateAll();
+        pids.invalidateAll();
+    }
+
+    @Override
+    public void onRedisDisconnected(RedisChannelHandler<?, ?> handler) {
+        if (handler == connection) {
+            tracking = false;
+            invalidateAll();
+            log.warn("Client tracking connection lost, serving users directly from Redis until reconnected");
+        }
+    }
+
+    @Override
+    public void onRedisConnected(RedisChannelHandler<?, ?> handler, SocketAddress socketAddress) {
+        if (handler != connection || tracking) {
+            return;
+        }
+        // tracking is per connection and must be turned on again after a reconnect
+        connection.async().clientTracking(TrackingArgs.Builder.enabled()).whenComplete((result, e) -> {
+            if (e != null) {
+                log.warn("Failed to turn on client tracking after reconnect, serving users directly from Redis", e);
+                return;
+            }
+            invalidateAll();
+            tracking = true;
+            log.info("Client tracking turned on again after reconnect");
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        if (connection != null) {
+            redisClient.removeListener(this);
+            connection.close();
+        }
+    }
+
+}
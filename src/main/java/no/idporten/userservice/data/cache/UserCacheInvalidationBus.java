@@ -0,0 +1,147 @@
+package no.idporten.userservice.data.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.ConsumerNameProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.SubscriptionListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the near caches on all pods in sync by publishing invalidations on a Redis pub/sub channel.
+ * <p>
+ * Invalidations are queued, and whoever gets to drain the queue sends everything queued so far in one message. With
+ * little traffic every invalidation is sent at once, under load they are batched while the previous message is in flight.
+ * A pod flushes its near cache every time the channel is (re)subscribed, since messages sent while disconnected are lost.
+ * If publishing fails, the next message tells the other pods to flush everything.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class UserCacheInvalidationBus implements MessageListener, SubscriptionListener {
+
+    public static final String CHANNEL = "user-cache-invalidation";
+
+    static final String FLUSH_ALL = "*";
+    static final String PID_PREFIX = "p:";
+    static final String UUID_PREFIX = "u:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final UserNearCache nearCache;
+    private final int maxBatchSize;
+    private final String nodeId = ConsumerNameProvider.getConsumerName();
+
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean publishFailed = false;
+
+    private final Counter publishedMessages;
+    private final Counter publishErrors;
+    private final Counter receivedMessages;
+
+    public UserCacheInvalidationBus(StringRedisTemplate stringRedisTemplate, UserNearCache nearCache, UserCacheProperties userCacheProperties, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.nearCache = nearCache;
+        this.maxBatchSize = userCacheProperties.getNearCache().getInvalidationBatchSize();
+        this.publishedMessages = Counter.builder("user.cache.invalidation.messages").tag("direction", "published").register(meterRegistry);
+        this.publishErrors = Counter.builder("user.cache.invalidation.errors").register(meterRegistry);
+        this.receivedMessages = Counter.builder("user.cache.invalidation.messages").tag("direction", "received").register(meterRegistry);
+    }
+
+    public void publish(String personIdentifier, UUID uuid) {
+        if (!nearCache.isEnabled()) {
+            return;
+        }
+        if (personIdentifier != null) {
+            pending.add(PID_PREFIX + personIdentifier);
+        }
+        if (uuid != null) {
+            pending.add(UUID_PREFIX + uuid);
+        }
+        drain();
+    }
+
+    public void publishFlushAll() {
+        if (!nearCache.isEnabled()) {
+            return;
+        }
+        pending.add(FLUSH_ALL);
+        drain();
+    }
+
+    private void drain() {
+        while (!pending.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                List<String> batch = new ArrayList<>();
+                batch.add(nodeId);
+                if (publishFailed) {
+                    batch.add(FLUSH_ALL);
+                }
+                String entry;
+                while (batch.size() <= maxBatchSize && (entry = pending.poll()) != null) {
+                    batch.add(entry);
+                }
+                send(String.join("\n", batch));
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    private void send(String message) {
+        try {
+            stringRedisTemplate.convertAndSend(CHANNEL, message);
+            publishFailed = false;
+            publishedMessages.increment();
+        } catch (Exception e) {
+            // everything queued is covered by the flush sent with the next message
+            publishFailed = true;
+            pending.clear();
+            publishErrors.increment();
+            log.warn("Failed to publish user cache invalidations, other pods will be told to flush their near cache on next publish", e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] entries = new String(message.getBody(), StandardCharsets.UTF_8).split("\n");
+        if (entries.length == 0 || nodeId.equals(entries[0])) {
+            return;
+        }
+        receivedMessages.increment();
+        for (int i = 1; i < entries.length; i++) {
+            String entry = entries[i];
+            if (FLUSH_ALL.equals(entry)) {
+                nearCache.invalidateAll();
+            } else if (entry.startsWith(PID_PREFIX)) {
+                nearCache.invalidate(entry.substring(PID_PREFIX.length()), null);
+            } else if (entry.startsWith(UUID_PREFIX)) {
+                try {
+                    nearCache.invalidate(null, UUID.fromString(entry.substring(UUID_PREFIX.length())));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring invalid uuid in user cache invalidation: {}", entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onChannelSubscribed(byte[] channel, long count) {
+        nearCache.invalidateAll();
+        log.info("Subscribed to {}, near cache flushed", new String(channel, StandardCharsets.UTF_8));
+    }
+
+}
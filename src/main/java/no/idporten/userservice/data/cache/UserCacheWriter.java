@@ -0,0 +1,275 @@
+package no.idporten.userservice.data.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.data.IDPortenUser;
+import no.idporten.userservice.data.Login;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.SetCondition;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes users and uuid -> pid mappings to the Redis caches, and invalidates the near caches once Redis is updated.
+ * <p>
+ * Writes are queued, and whoever gets to drain the queue sends everything queued so far in one pipelined round trip.
+ * Several writes to the same key in one round trip are coalesced into the newest one, and a write only filling in a
+ * missing entry never replaces another write.
+ * <p>
+ * Users are written with a version taken from the snapshot being written (see {@link #versionOf(IDPortenUser)}), kept
+ * next to the user in {@link #versionKey(String)}. Redis drops writes older than the version already there, so an
+ * old snapshot handled late by an async event handler can not overwrite a newer one. Deleting a user leaves the
+ * deletion time as the version for a while, so late writes of the deleted user are dropped as well.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class UserCacheWriter {
+
+
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final long TOMBSTONE_SECONDS = Duration.ofHours(1).toSeconds();
+    private static final long UNVERSIONED = -1;
+
+    private static final byte[] SET = "set".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SET_IF_ABSENT = "nx".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DELETE = "del".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NO_VALUE = new byte[0];
+
+    /**
+     * KEYS: user, version. ARGV: value, version, ttl in seconds, mode (set, nx or del). Returns 1 if written, 0 if dropped.
+     */
+    static final RedisScript<Long> WRITE_USER = new DefaultRedisScript<>("""
+            local current = redis.call('GET', KEYS[2])
+            if current and tonumber(current) > tonumber(ARGV[2]) then
+                return 0
+            end
+            if ARGV[4] == 'del' then
+                redis.call('DEL', KEYS[1])
+                redis.call('SET', KEYS[2], ARGV[2], 'EX', ARGV[3])
+                return 1
+            end
+            if ARGV[4] == 'nx' and redis.call('EXISTS', KEYS[1]) == 1 then
+                return 0
+            end
+            redis.call('SET', KEYS[1], ARGV[1], 'EX', ARGV[3])
+            redis.call('SET', KEYS[2], ARGV[2], 'EX', ARGV[3])
+            return 1
+            """, Long.class);
+
+    /**
+     * The version key of a user. The pid is the hash tag, so the version lands in the same Redis Cluster slot as the
+     * user and both can be used by the same script.
+     */
+    static String versionKey(String personIdentifier) {
+        return "version:{" + personIdentifier + "}";
+    }
+
+    private final RedisTemplate<String, IDPortenUser> idportenUserCache;
+    private final RedisSerializer<String> userKeySerializer;
+    private final RedisSerializer<IDPortenUser> userValueSerializer;
+    private final RedisSerializer<String> uuidKeySerializer;
+    private final RedisSerializer<String> uuidValueSerializer;
+    private final Expiration expiration;
+    private final byte[] ttlSeconds;
+    private final UserNearCache nearCache;
+    private final UserCacheInvalidationBus invalidationBus;
+
+    private final Queue<CacheWrite> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean scriptLoaded = false;
+
+    private final DistributionSummary batchSize;
+    private final Counter coalescedWrites;
+    private final Counter writeErrors;
+    private final Counter staleWrites;
+
+    @SuppressWarnings("unchecked")
+    public UserCacheWriter(RedisTemplate<String, IDPortenUser> idportenUserCache, RedisTemplate<String, String> uuidToUseridCache,
+                           UserNearCache nearCache, UserCacheInvalidationBus invalidationBus, MeterRegistry meterRegistry,
+                           @Value("${digdir.caching.time_to_live_in_days}") String ttl) {
+        this.idportenUserCache = idportenUserCache;
+        this.userKeySerializer = (RedisSerializer<String>) idportenUserCache.getKeySerializer();
+        this.userValueSerializer = (RedisSerializer<IDPortenUser>) idportenUserCache.getValueSerializer();
+        this.uuidKeySerializer = (RedisSerializer<String>) uuidToUseridCache.getKeySerializer();
+        this.uuidValueSerializer = (RedisSerializer<String>) uuidToUseridCache.getValueSerializer();
+        this.expiration = Expiration.from(Long.parseLong(ttl), TimeUnit.DAYS);
+        this.ttlSeconds = bytes(expiration.getExpirationTimeInSeconds());
+        this.nearCache = nearCache;
+        this.invalidationBus = invalidationBus;
+        this.batchSize = DistributionSummary.builder("user.cache.write.batch.size").register(meterRegistry);
+        this.coalescedWrites = Counter.builder("user.cache.write.coalesced").register(meterRegistry);
+        this.writeErrors = Counter.builder("user.cache.write.errors").register(meterRegistry);
+        this.staleWrites = Counter.builder("user.cache.write.stale").register(meterRegistry);
+    }
+
+    /**
+     * The newest change in a snapshot of the user. All changes to a user, including logins, move this forward.
+     */
+    public static long versionOf(IDPortenUser user) {
+        long version = 0;
+        if (user.getLastUpdated() != null) {
+            version = Math.max(version, user.getLastUpdated().toEpochMilli());
+        }
+        if (user.getClosedCodeLastUpdated() != null) {
+            version = Math.max(version, user.getClosedCodeLastUpdated().toEpochMilli());
+        }
+        if (user.getLogins() != null) {
+            for (Login login : user.getLogins()) {
+                if (login.getLastLogin() != null) {
+                    version = Math.max(version, login.getLastLogin().toEpochMilli());
+                }
+            }
+        }
+        return version;
+    }
+
+    public CacheWrite setUser(IDPortenUser user) {
+        return new CacheWrite(user.getPid(), userKeySerializer.serialize(user.getPid()), userValueSerializer.serialize(user), false, versionOf(user), user.getPid(), null);
+    }
+
+    public CacheWrite setUserIfAbsent(IDPortenUser user) {
+        return new CacheWrite(user.getPid(), userKeySerializer.serialize(user.getPid()), userValueSerializer.serialize(user), true, versionOf(user), user.getPid(), null);
+    }
+
+    public CacheWrite deleteUser(String personIdentifier) {
+        return new CacheWrite(personIdentifier, userKeySerializer.serialize(personIdentifier), null, false, System.currentTimeMillis(), personIdentifier, null);
+    }
+
+    public CacheWrite setUuid(UUID uuid, String personIdentifier) {
+        return new CacheWrite(uuid.toString(), uuidKeySerializer.serialize(uuid.toString()), uuidValueSerializer.serialize(personIdentifier), false, UNVERSIONED, null, uuid);
+    }
+
+    public CacheWrite setUuidIfAbsent(UUID uuid, String personIdentifier) {
+        return new CacheWrite(uuid.toString(), uuidKeySerializer.serialize(uuid.toString()), uuidValueSerializer.serialize(personIdentifier), true, UNVERSIONED, null, uuid);
+    }
+
+    public CacheWrite deleteUuid(UUID uuid) {
+        return new CacheWrite(uuid.toString(), uuidKeySerializer.serialize(uuid.toString()), null, false, UNVERSIONED, null, uuid);
+    }
+
+    public void submit(CacheWrite... writes) {
+        for (CacheWrite write : writes) {
+            pending.add(write);
+        }
+        drain();
+    }
+
+    private void drain() {
+        while (!pending.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                Map<String, CacheWrite> batch = new LinkedHashMap<>();
+                int polled = 0;
+                CacheWrite write;
+                while (batch.size() < MAX_BATCH_SIZE && (write = pending.poll()) != null) {
+                    polled++;
+                    batch.merge(write.key(), write, (previous, next) -> next.ifAbsent() || next.version() < previous.version() ? previous : next);
+                }
+                coalescedWrites.increment(polled - batch.size());
+                flush(batch.values());
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    private void flush(Collection<CacheWrite> writes) {
+        batchSize.record(writes.size());
+        List<CacheWrite> batch = List.copyOf(writes);
+        List<Object> results = null;
+        try {
+            results = pipeline(batch);
+        } catch (RuntimeException e) {
+            if (isNoScript(e)) {
+                // scripts are lost when Redis restarts or fails over
+                scriptLoaded = false;
+                try {
+                    results = pipeline(batch);
+                } catch (RuntimeException retryException) {
+                    e = retryException;
+                }
+            }
+            if (results == null) {
+                writeErrors.increment();
+                log.warn("Failed to write {} entries to the user cache", batch.size(), e);
+            }
+        }
+        // after Redis is updated, so pods reloading the user from Redis get the new value
+        for (int i = 0; i < batch.size(); i++) {
+            CacheWrite write = batch.get(i);
+            if (results != null && write.version() != UNVERSIONED && Long.valueOf(0).equals(results.get(i))) {
+                if (!write.ifAbsent()) {
+                    staleWrites.increment();
+                }
+                continue;
+            }
+            if (!write.ifAbsent()) {
+                nearCache.invalidate(write.invalidatePid(), write.invalidateUuid());
+                invalidationBus.publish(write.invalidatePid(), write.invalidateUuid());
+            }
+        }
+    }
+
+    private List<Object> pipeline(List<CacheWrite> batch) {
+        if (!scriptLoaded) {
+            idportenUserCache.execute((RedisCallback<String>) connection ->
+                    connection.scriptingCommands().scriptLoad(WRITE_USER.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+            scriptLoaded = true;
+        }
+        return idportenUserCache.executePipelined((RedisCallback<Object>) connection -> {
+            for (CacheWrite write : batch) {
+                if (write.version() != UNVERSIONED) {
+                    connection.scriptingCommands().evalSha(WRITE_USER.getSha1(), ReturnType.INTEGER, 2,
+                            write.rawKey(), userKeySerializer.serialize(versionKey(write.key())),
+                            write.value() == null ? NO_VALUE : write.value(), bytes(write.version()),
+                            write.value() == null ? bytes(TOMBSTONE_SECONDS) : ttlSeconds,
+                            write.value() == null ? DELETE : write.ifAbsent() ? SET_IF_ABSENT : SET);
+                } else if (write.value() == null) {
+                    connection.keyCommands().del(write.rawKey());
+                } else {
+                    connection.stringCommands().set(write.rawKey(), write.value(),
+                            write.ifAbsent() ? SetCondition.ifAbsent() : SetCondition.upsert(), expiration);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] bytes(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public record CacheWrite(String key, byte[] rawKey, byte[] value, boolean ifAbsent, long version, String invalidatePid, UUID invalidateUuid) {
+    }
+
+}
@@ -0,0 +1,159 @@
+package no.idporten.userservice.data.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.IDPortenUser;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Makes concurrent cache misses for the same user share one database load, so a cold or flushed cache does not send
+ * every concurrent login for a popular user to the database.
+ * <p>
+ * Within the pod, the first caller loads the user and everyone else asking for the same key meanwhile waits for the
+ * result. Optionally the pods also coordinate through a short lived lock in Redis: pods not holding the lock wait a
+ * little for the user to show up in the cache before going to the database themselves. The lock is best effort, and
+ * the database is always used as a last resort.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class UserLoadCoalescer {
+
+    static final String LOCK_PREFIX = "user-load-lock:";
+
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(20);
+
+    private static final RedisScript<Long> RELEASE_LOCK = new DefaultRedisScript<>("""
+            if redis.call('GET', KEYS[1]) == ARGV[1] then
+                return redis.call('DEL', KEYS[1])
+            end
+            return 0
+            """, Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final boolean distributedLock;
+    private final Duration lockTimeout;
+    private final Duration lockWait;
+
+    private final ConcurrentMap<String, CompletableFuture<IDPortenUser>> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter coalescedLoads;
+
+    public UserLoadCoalescer(StringRedisTemplate stringRedisTemplate, UserCacheProperties userCacheProperties, MeterRegistry meterRegistry) {
+        UserCacheProperties.SingleFlight properties = userCacheProperties.getSingleFlight();
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.distributedLock = properties.isDistributedLock();
+        this.lockTimeout = properties.getLockTimeout();
+        this.lockWait = properties.getLockWait();
+        this.coalescedLoads = Counter.builder("user.cache.load.coalesced").register(meterRegistry);
+    }
+
+    /**
+     * Loads the user with the given key, unless it is already being loaded.
+     *
+     * @param key    identifies the user, must be unique across pid and uuid lookups
+     * @param cached looks the user up in Redis, used while another pod holds the lock
+     * @param loader loads the user from the database, may return null
+     * @return a copy of the loaded user, or null
+     */
+    public IDPortenUser load(String key, Supplier<IDPortenUser> cached, Supplier<IDPortenUser> loader) {
+        CompletableFuture<IDPortenUser> flight = new CompletableFuture<>();
+        CompletableFuture<IDPortenUser> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalescedLoads.increment();
+            return copy(join(existing));
+        }
+        try {
+            IDPortenUser user = distributedLock ? loadWithLock(key, cached, loader) : loader.get();
+            flight.complete(user);
+            return copy(user);
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private IDPortenUser loadWithLock(String key, Supplier<IDPortenUser> cached, Supplier<IDPortenUser> loader) {
+        String lockKey = LOCK_PREFIX + key;
+        String token = UUID.randomUUID().toString();
+        boolean acquired;
+        try {
+            acquired = Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(lockKey, token, lockTimeout));
+        } catch (RuntimeException e) {
+            log.warn("Failed to take user load lock {}, loading user from database", lockKey, e);
+            return loader.get();
+        }
+        if (acquired) {
+            IDPortenUser user = null;
+            try {
+                user = loader.get();
+                return user;
+            } finally {
+                // a found user is written to Redis asynchronously, so leave the lock to expire while others wait for it
+                if (user == null) {
+                    releaseLock(lockKey, token);
+                }
+            }
+        }
+        long deadline = System.nanoTime() + lockWait.toNanos();
+        try {
+            while (System.nanoTime() < deadline) {
+                Thread.sleep(POLL_INTERVAL);
+                IDPortenUser user = cached.get();
+                if (user != null) {
+                    coalescedLoads.increment();
+                    return user;
+                }
+                if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(lockKey))) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.warn("Failed while waiting for user load lock {}, loading user from database", lockKey, e);
+        }
+        return loader.get();
+    }
+
+    private void releaseLock(String lockKey, String token) {
+        try {
+            stringRedisTemplate.execute(RELEASE_LOCK, List.of(lockKey), token);
+        } catch (RuntimeException e) {
+            log.warn("Failed to release user load lock {}, it expires in {}", lockKey, lockTimeout, e);
+        }
+    }
+
+    private static IDPortenUser join(CompletableFuture<IDPortenUser> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private static IDPortenUser copy(IDPortenUser user) {
+        return user == null ? null : user.copy();
+    }
+
+}
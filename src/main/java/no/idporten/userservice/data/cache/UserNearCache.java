@@ -0,0 +1,115 @@
+package no.idporten.userservice.data.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.IDPortenUser;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+/**
+ * In-process (L1) cache in front of the Redis user cache. Holds pid -> user and uuid -> pid for the most used users,
+ * so they are served without a round trip to Redis.
+ * <p>
+ * Users are copied in and out of the cache since callers are free to mutate the users they get back.
+ * Writes are guarded by a stamp taken before the value was read from Redis or the database, so a value read before an
+ * invalidation of the same user can not be put back into the cache after it.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "digdir.caching.enabled", havingValue = "true")
+public class UserNearCache {
+
+    private final boolean enabled;
+    private final Cache<String, IDPortenUser> users;
+    private final Cache<UUID, String> pids;
+    private final InvalidationStamps invalidations = new InvalidationStamps();
+
+    public UserNearCache(UserCacheProperties userCacheProperties, MeterRegistry meterRegistry) {
+        UserCacheProperties.NearCache properties = userCacheProperties.getNearCache();
+        // client tracking keeps its own copy of the users, with invalidations pushed from Redis
+        this.enabled = properties.isEnabled() && !userCacheProperties.getClientTracking().isEnabled();
+        this.users = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumSize())
+                .expireAfterWrite(properties.getTimeToLive())
+                .recordStats()
+                .build();
+        this.pids = Caffeine.newBuilder()
+                .maximumSize(properties.getMaximumSize())
+                .expireAfterWrite(properties.getTimeToLive())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, users, "idportenUserNearCache");
+        CaffeineCacheMetrics.monitor(meterRegistry, pids, "uuidToUseridNearCache");
+        log.info("Near cache is {}", enabled ? "enabled with time to live " + properties.getTimeToLive() : "disabled");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Take a stamp before reading a value from Redis or the database, and hand it to {@link #put(IDPortenUser, long)}.
+     */
+    public long stamp() {
+        return invalidations.stamp();
+    }
+
+    public IDPortenUser getUser(String personIdentifier) {
+        if (!enabled) {
+            return null;
+        }
+        IDPortenUser user = users.getIfPresent(personIdentifier);
+        return user == null ? null : user.copy();
+    }
+
+    public String getPid(UUID uuid) {
+        if (!enabled) {
+            return null;
+        }
+        return pids.getIfPresent(uuid);
+    }
+
+    /**
+     * Caches the user unless it has been invalidated since the stamp was taken.
+     */
+    public void put(IDPortenUser user, long stamp) {
+        if (!enabled || user == null || user.getPid() == null || user.getId() == null || invalidatedSince(stamp, user)) {
+            return;
+        }
+        users.put(user.getPid(), user.copy());
+        pids.put(user.getId(), user.getPid());
+        // an invalidation may have slipped in between the check and the put
+        if (invalidatedSince(stamp, user)) {
+            users.invalidate(user.getPid());
+            pids.invalidate(user.getId());
+        }
+    }
+
+    private boolean invalidatedSince(long stamp, IDPortenUser user) {
+        return invalidations.invalidatedSince(stamp, user.getPid()) || invalidations.invalidatedSince(stamp, user.getId());
+    }
+
+    public void invalidate(String personIdentifier, UUID uuid) {
+        if (personIdentifier != null) {
+            invalidations.invalidate(personIdentifier);
+            users.invalidate(personIdentifier);
+        }
+        if (uuid != null) {
+            invalidations.invalidate(uuid);
+            pids.invalidate(uuid);
+        }
+    }
+
+    public void invalidateAll() {
+        invalidations.invalidateAll();
+        users.invalidateAll();
+        pids.invalidateAll();
+    }
+
+}
@@ -14,7 +14,9 @@ public enum AuditID {
     ADMIN_USER_SEARCHED("ADMIN-USER-SEARCHED"),
     ADMIN_USER_READ("ADMIN-USER-READ"),
     ADMIN_USER_UPDATE("ADMIN-USER-UPDATED"),
-    ADMIN_USER_STATUS_UPDATED("ADMIN-USER-STATUS-UPDATED");
+    ADMIN_USER_STATUS_UPDATED("ADMIN-USER-STATUS-UPDATED"),
+    ADMIN_DEAD_LETTERS_READ("ADMIN-DEAD-LETTERS-READ"),
+    ADMIN_DEAD_LETTER_REPLAYED("ADMIN-DEAD-LETTER-REPLAYED");
 
     private static final String AUDIT_ID_FORMAT = "IDPORTEN-USER-SERVICE-%s";
 
@@ -0,0 +1,53 @@
+package no.idporten.userservice.config;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When partitioning the update-last-login stream")
+class UpdateLastLoginStreamPropertiesTest {
+
+    @Test
+    @DisplayName("then one partition keeps the single update-last-login stream")
+    void testOnePartition() {
+        UpdateLastLoginStreamProperties properties = new UpdateLastLoginStreamProperties();
+
+        assertEquals(List.of(UPDATE_LAST_LOGIN_STREAM), properties.streamKeys());
+        assertEquals(UPDATE_LAST_LOGIN_STREAM, properties.streamKey(UUID.randomUUID()));
+    }
+
+    @Test
+    @DisplayName("then users are spread over all partitions, and each user always goes to the same partition")
+    void testPartitions() {
+        UpdateLastLoginStreamProperties properties = new UpdateLastLoginStreamProperties();
+        properties.setPartitions(4);
+        UUID userId = UUID.randomUUID();
+
+        assertEquals(List.of(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_STREAM + ":1", UPDATE_LAST_LOGIN_STREAM + ":2", UPDATE_LAST_LOGIN_STREAM + ":3"), properties.streamKeys());
+        assertEquals(properties.streamKey(userId), properties.streamKey(UUID.fromString(userId.toString())));
+        Set<String> used = IntStream.range(0, 1000).mapToObj(i -> properties.streamKey(UUID.randomUUID())).collect(Collectors.toSet());
+        assertEquals(Set.copyOf(properties.streamKeys()), used);
+    }
+
+    @Test
+    @DisplayName("then the retry backoff doubles for every delivery up to the max")
+    void testRetryBackoff() {
+        UpdateLastLoginStreamProperties properties = new UpdateLastLoginStreamProperties();
+
+        assertEquals(Duration.ofSeconds(10), properties.retryBackoff(1));
+        assertEquals(Duration.ofSeconds(20), properties.retryBackoff(2));
+        assertEquals(Duration.ofSeconds(80), properties.retryBackoff(4));
+        assertEquals(Duration.ofHours(1), properties.retryBackoff(20));
+        assertEquals(Duration.ofHours(1), properties.retryBackoff(Long.MAX_VALUE));
+    }
+
+}
@@ -1,17 +1,23 @@
 package no.idporten.userservice.data;
 
 import no.idporten.userservice.BaseRedisTest;
+import no.idporten.userservice.data.event.UserReadEvent;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.webmvc.test.autoconfigure.AutoConfigureMockMvc;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
 
 import java.time.Instant;
+import java.util.UUID;
 
 import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.verify;
 
@@ -27,6 +33,12 @@ class CacheUpdaterTest extends BaseRedisTest {
     @Autowired
     private CachedUserService userService;
 
+    @Autowired
+    private RedisTemplate<String, IDPortenUser> idportenUserCache;
+
+    @Autowired
+    private RedisTemplate<String, String> uuidToUseridCache;
+
     @Test
     void handleUserCreatedEvent() {
         userService.createUser(createUser("52345678910"));
@@ -47,6 +59,21 @@ class CacheUpdaterTest extends BaseRedisTest {
         verify(cacheUpdater).handleUserDeletedEvent(any());
     }
 
+    @Test
+    void handleUserReadEventOnlyFillsInMissingEntries() {
+        IDPortenUser cachedUser = createUser("62345678910");
+        cachedUser.setId(UUID.randomUUID());
+        cachedUser.setStatus("SPERRET");
+        idportenUserCache.opsForValue().set(cachedUser.getPid(), cachedUser);
+        IDPortenUser readUser = createUser("62345678910");
+        readUser.setId(cachedUser.getId());
+
+        cacheUpdater.handleUserReadEvent(new UserReadEvent(this, readUser));
+
+        await().atMost(5, SECONDS).until(() -> uuidToUseridCache.hasKey(readUser.getId().toString()));
+        assertEquals("SPERRET", idportenUserCache.opsForValue().get(cachedUser.getPid()).getClosedCode());
+    }
+
     private IDPortenUser createUser(String pid) {
         return new IDPortenUser(null, pid, Instant.now(), Instant.now(), true, null, Instant.now(), null, emptyList(), null);
     }
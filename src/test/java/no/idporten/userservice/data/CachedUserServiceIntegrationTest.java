@@ -8,6 +8,7 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.webmvc.test.autoconfigure.AutoConfigureMockMvc;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
 
@@ -34,6 +35,9 @@ public class CachedUserServiceIntegrationTest extends BaseRedisTest {
     @Autowired
     private CachedUserService userService;
 
+    @Autowired
+    private RedisTemplate<String, String> uuidToUseridCache;
+
     @BeforeEach
     void resetSpy() {
         reset(userRepository);
@@ -58,6 +62,17 @@ public class CachedUserServiceIntegrationTest extends BaseRedisTest {
         verify(userRepository, times(2)).findByPersonIdentifier(anyString());
     }
 
+    @Test
+    @DisplayName("then repeated searches for a non-existing user only ask the database once")
+    public void testSearchForNonExistingUserUsesNegativeCache() {
+        assertFalse(userService.searchForUser("12345678916").isPresent());
+        assertFalse(userService.searchForUser("12345678916").isPresent());
+        verify(userRepository, times(1)).findByPersonIdentifier("12345678916");
+
+        userService.createUser(createUser("12345678916"));
+        assertTrue(userService.searchForUser("12345678916").isPresent());
+    }
+
     @Nested
     @DisplayName("When user")
     public class ChangePidTest {
@@ -174,6 +189,22 @@ public class CachedUserServiceIntegrationTest extends BaseRedisTest {
             verify(userRepository).findByUuid(uuid);
         }
 
+        @Test
+        @DisplayName("by id for a cached user then the user is found in redis")
+        public void testFindCachedUserById() {
+            String personIdentifier = "12640";
+            IDPortenUser user = userService.createUser(createUser(personIdentifier));
+            await().atMost(5, SECONDS).until(() -> personIdentifier.equals(uuidToUseridCache.opsForValue().get(user.getId().toString())));
+            reset(userRepository);
+
+            IDPortenUser userFound = userService.findUser(user.getId());
+
+            assertNotNull(userFound);
+            assertEquals(personIdentifier, userFound.getPid());
+            assertEquals(user.getId(), userFound.getId());
+            verify(userRepository, never()).findByUuid(any(UUID.class));
+        }
+
         @Test
         @DisplayName("by person-identifier then one user is returned")
         public void testSearchUsersByPid() {
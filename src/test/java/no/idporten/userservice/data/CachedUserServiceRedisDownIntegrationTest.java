@@ -0,0 +1,27 @@
+package no.idporten.userservice.data;
+
+import org.junit.jupiter.api.DisplayName;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.GenericContainer;
+
+@DisplayName("When Redis is unavailable")
+public class CachedUserServiceRedisDownIntegrationTest extends RedisDownIntegrationTest {
+
+    private static final GenericContainer<?> REDIS = startRedis();
+
+    public CachedUserServiceRedisDownIntegrationTest() {
+        super("1234567893");
+    }
+
+    @DynamicPropertySource
+    static void registerProperties(DynamicPropertyRegistry registry) {
+        registerProperties(registry, REDIS);
+    }
+
+    @Override
+    void stopRedis() {
+        REDIS.stop();
+    }
+
+}
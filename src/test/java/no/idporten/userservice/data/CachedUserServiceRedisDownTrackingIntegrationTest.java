@@ -0,0 +1,29 @@
+package no.idporten.userservice.data;
+
+import org.junit.jupiter.api.DisplayName;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import org.testcontainers.containers.GenericContainer;
+
+@DisplayName("When Redis is unavailable with client side caching")
+@TestPropertySource(properties = "digdir.caching.client-tracking.enabled=true")
+public class CachedUserServiceRedisDownTrackingIntegrationTest extends RedisDownIntegrationTest {
+
+    private static final GenericContainer<?> REDIS = startRedis();
+
+    public CachedUserServiceRedisDownTrackingIntegrationTest() {
+        super("1234567894");
+    }
+
+    @DynamicPropertySource
+    static void registerProperties(DynamicPropertyRegistry registry) {
+        registerProperties(registry, REDIS);
+    }
+
+    @Override
+    void stopRedis() {
+        REDIS.stop();
+    }
+
+}
@@ -0,0 +1,162 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When using the database circuit breaker")
+class DatabaseCircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<DatabaseCircuitBreaker.State> notified = new ArrayList<>();
+
+    private DataSource dataSource;
+    private Connection connection;
+    private SimpleMeterRegistry meterRegistry;
+    private UpdateLastLoginStreamProperties.CircuitBreaker properties;
+    private DatabaseCircuitBreaker circuitBreaker;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dataSource = mock(DataSource.class);
+        connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        meterRegistry = new SimpleMeterRegistry();
+        properties = new UpdateLastLoginStreamProperties.CircuitBreaker();
+        properties.setFailureThreshold(3);
+        properties.setSlowCallThreshold(Duration.ofSeconds(2));
+        properties.setOpenDuration(Duration.ofSeconds(30));
+        circuitBreaker = new DatabaseCircuitBreaker(dataSource, properties, meterRegistry, now::get);
+        circuitBreaker.addListener(notified::add);
+    }
+
+    private void failUnavailable() {
+        assertThrows(DataAccessResourceFailureException.class, () -> circuitBreaker.execute(() -> {
+            throw new DataAccessResourceFailureException("Connection refused");
+        }));
+    }
+
+    private void open() {
+        for (int i = 0; i < properties.getFailureThreshold(); i++) {
+            failUnavailable();
+        }
+        assertEquals(DatabaseCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    @DisplayName("then the breaker opens after failure-threshold unavailable calls in a row")
+    void testOpensAfterThreshold() {
+        failUnavailable();
+        failUnavailable();
+        assertTrue(circuitBreaker.isCallPermitted());
+
+        failUnavailable();
+
+        assertFalse(circuitBreaker.isCallPermitted());
+        assertEquals(List.of(DatabaseCircuitBreaker.State.OPEN), notified);
+        assertEquals(1, meterRegistry.get("user.db.circuit.open").gauge().value());
+    }
+
+    @Test
+    @DisplayName("then a successful call resets the count of failing calls")
+    void testSuccessResets() {
+        failUnavailable();
+        failUnavailable();
+        assertEquals("ok", circuitBreaker.execute(() -> "ok"));
+        failUnavailable();
+        failUnavailable();
+
+        assertEquals(DatabaseCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    @DisplayName("then calls rejected by the database do not open the breaker")
+    void testRejectedCallsIgnored() {
+        for (int i = 0; i < 10; i++) {
+            assertThrows(DataIntegrityViolationException.class, () -> circuitBreaker.execute(() -> {
+                throw new DataIntegrityViolationException("Duplicate entry");
+            }));
+        }
+
+        assertEquals(DatabaseCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(notified.isEmpty());
+    }
+
+    @Test
+    @DisplayName("then connection failures wrapped in other exceptions count as unavailable")
+    void testWrappedConnectionFailure() {
+        assertTrue(DatabaseCircuitBreaker.isUnavailable(new IllegalStateException(new SQLTransientConnectionException("timeout"))));
+        assertFalse(DatabaseCircuitBreaker.isUnavailable(new IllegalStateException("bad data")));
+    }
+
+    @Test
+    @DisplayName("then slow calls open the breaker")
+    void testSlowCalls() {
+        for (int i = 0; i < properties.getFailureThreshold(); i++) {
+            circuitBreaker.execute(() -> now.addAndGet(Duration.ofSeconds(3).toNanos()));
+        }
+
+        assertEquals(DatabaseCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    @DisplayName("then the database is not probed before open-duration has passed")
+    void testNoProbeBeforeOpenDuration() throws Exception {
+        open();
+        now.addAndGet(Duration.ofSeconds(29).toNanos());
+
+        circuitBreaker.probe();
+
+        verify(dataSource, never()).getConnection();
+        assertEquals(DatabaseCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    @DisplayName("then a valid connection after open-duration closes the breaker")
+    void testProbeCloses() throws Exception {
+        when(connection.isValid(anyInt())).thenReturn(true);
+        open();
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+
+        circuitBreaker.probe();
+
+        assertEquals(DatabaseCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertEquals(List.of(DatabaseCircuitBreaker.State.OPEN, DatabaseCircuitBreaker.State.CLOSED), notified);
+        assertEquals(0, meterRegistry.get("user.db.circuit.open").gauge().value());
+        verify(connection).close();
+    }
+
+    @Test
+    @DisplayName("then a failing probe keeps the breaker open for another open-duration")
+    void testProbeFails() throws Exception {
+        when(dataSource.getConnection()).thenThrow(new SQLTransientConnectionException("Connection refused"));
+        open();
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+
+        circuitBreaker.probe();
+        assertEquals(DatabaseCircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        circuitBreaker.probe();
+
+        verify(dataSource, times(1)).getConnection();
+        assertEquals(List.of(DatabaseCircuitBreaker.State.OPEN), notified);
+    }
+
+}
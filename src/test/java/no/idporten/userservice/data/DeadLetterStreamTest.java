@@ -0,0 +1,122 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands.XAddOptions;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.http.HttpStatus;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM;
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When moving login updates to the dead-letter stream")
+class DeadLetterStreamTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    @SuppressWarnings("unchecked")
+    private final RedisTemplate<String, String> updateEidCache = mock(RedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final StreamOperations<String, Object, Object> streamOperations = mock(StreamOperations.class);
+    private final UpdateLastLoginStreamProperties streamProperties = new UpdateLastLoginStreamProperties();
+    private final DeadLetterStream deadLetterStream;
+
+    DeadLetterStreamTest() {
+        when(updateEidCache.opsForStream()).thenReturn(streamOperations);
+        deadLetterStream = new DeadLetterStream(updateEidCache, streamProperties, meterRegistry);
+    }
+
+    @Test
+    @DisplayName("then the original record is kept with where it came from and why it failed")
+    @SuppressWarnings("unchecked")
+    void testAdd() {
+        UUID userId = UUID.randomUUID();
+        MapRecord<String, Object, Object> record = record(userId).withId(RecordId.of("1-0"));
+
+        deadLetterStream.add(UPDATE_LAST_LOGIN_STREAM, record, 10, new DataIntegrityViolationException("eid_user_fk"));
+
+        verify(streamOperations).add(argThat((MapRecord<String, Object, Object> deadLetter) ->
+                deadLetter.getStream().equals(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM)
+                        && deadLetter.getValue().get("userId").equals(userId.toString())
+                        && deadLetter.getValue().get(DeadLetterStream.SOURCE_STREAM).equals(UPDATE_LAST_LOGIN_STREAM)
+                        && deadLetter.getValue().get(DeadLetterStream.SOURCE_ID).equals("1-0")
+                        && deadLetter.getValue().get(DeadLetterStream.DELIVERIES).equals("10")
+                        && deadLetter.getValue().get(DeadLetterStream.REASON).equals("DataIntegrityViolationException: eid_user_fk")),
+                any(XAddOptions.class));
+        assertEquals(1.0, meterRegistry.get("user.stream.records").tag("result", "dead-lettered").counter().count());
+    }
+
+    @Test
+    @DisplayName("then replaying adds the original record to the partition of the user and removes the dead letter")
+    @SuppressWarnings("unchecked")
+    void testReplay() {
+        UUID userId = UUID.randomUUID();
+        streamProperties.setPartitions(4);
+        Map<Object, Object> deadLetter = new LinkedHashMap<>(record(userId).getValue());
+        deadLetter.put(DeadLetterStream.SOURCE_STREAM, UPDATE_LAST_LOGIN_STREAM);
+        deadLetter.put(DeadLetterStream.SOURCE_ID, "1-0");
+        deadLetter.put(DeadLetterStream.DELIVERIES, "10");
+        deadLetter.put(DeadLetterStream.REASON, "DataIntegrityViolationException: eid_user_fk");
+        when(streamOperations.range(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM, Range.closed("5-0", "5-0")))
+                .thenReturn(List.of(MapRecord.create(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM, deadLetter).withId(RecordId.of("5-0"))));
+
+        assertTrue(deadLetterStream.replay(RecordId.of("5-0")));
+
+        verify(streamOperations).add(argThat((MapRecord<String, Object, Object> replayed) ->
+                replayed.getStream().equals(streamProperties.streamKey(userId))
+                        && replayed.getValue().equals(record(userId).getValue())),
+                any(XAddOptions.class));
+        verify(streamOperations).delete(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM, RecordId.of("5-0"));
+    }
+
+    @Test
+    @DisplayName("then replaying a dead letter that does not exist does nothing")
+    void testReplayMissing() {
+        when(streamOperations.range(any(), any())).thenReturn(List.of());
+
+        assertFalse(deadLetterStream.replay(RecordId.of("5-0")));
+
+        verify(streamOperations, never()).delete(any(), any(RecordId[].class));
+    }
+
+    @Test
+    @DisplayName("then replaying a dead letter that can not be read is refused and leaves the dead letter")
+    void testReplayUnreadable() {
+        Map<Object, Object> deadLetter = new LinkedHashMap<>(Map.of("eidName", "MinID"));
+        deadLetter.put(DeadLetterStream.SOURCE_STREAM, UPDATE_LAST_LOGIN_STREAM);
+        deadLetter.put(DeadLetterStream.SOURCE_ID, "1-0");
+        deadLetter.put(DeadLetterStream.DELIVERIES, "1");
+        deadLetter.put(DeadLetterStream.REASON, "NullPointerException: null");
+        when(streamOperations.range(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM, Range.closed("5-0", "5-0")))
+                .thenReturn(List.of(MapRecord.create(UPDATE_LAST_LOGIN_DEAD_LETTER_STREAM, deadLetter).withId(RecordId.of("5-0"))));
+
+        UserServiceException e = assertThrows(UserServiceException.class, () -> deadLetterStream.replay(RecordId.of("5-0")));
+
+        assertEquals(HttpStatus.CONFLICT, e.getHttpStatus());
+        verify(streamOperations, never()).add(any(MapRecord.class), any(XAddOptions.class));
+        verify(streamOperations, never()).delete(any(), any(RecordId[].class));
+    }
+
+    private static MapRecord<String, Object, Object> record(UUID userId) {
+        return MapRecord.create(UPDATE_LAST_LOGIN_STREAM, Map.of(
+                "userId", userId.toString(),
+                "eidName", "MinID",
+                "loginTimeInEpochMillis", "1000"));
+    }
+
+}
@@ -1,5 +1,6 @@
 package no.idporten.userservice.data;
 
+import no.idporten.userservice.data.event.UserUpdatedEvent;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
@@ -15,6 +16,7 @@ import java.util.*;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -23,6 +25,9 @@ public class DirectUserServiceTest {
     @Mock
     private UserRepository userRepository;
 
+    @Mock
+    private LoginRepository loginRepository;
+
     @InjectMocks
     private DirectUserService userService;
 
@@ -214,6 +219,83 @@ public class DirectUserServiceTest {
         }
     }
 
+    @Nested
+    @DisplayName("When updating last logins")
+    public class UpdateLastLoginsTest {
+
+        @Test
+        @DisplayName("for one user then the login is upserted without loading the user first and the user is published as updated")
+        public void testUpdateLastLogin() {
+            UUID uuid = UUID.randomUUID();
+            LoginEntity loginEntity = LoginEntity.builder().eidName("MinID").id(1L).lastLoginAtEpochMs(2000).firstLoginAtEpochMs(1000).build();
+            UserEntity userEntity = UserEntity.builder().personIdentifier("1263").uuid(uuid).logins(List.of(loginEntity)).build();
+            when(userRepository.findByUuidIn(Set.of(uuid))).thenReturn(List.of(userEntity));
+
+            List<IDPortenUser> updatedUsers = userService.updateLastLogins(List.of(new LastLogin(uuid, "MinID", 2000)));
+
+            assertEquals(1, updatedUsers.size());
+            assertEquals(Instant.ofEpochMilli(2000), updatedUsers.getFirst().getLastLogin().getLastLogin());
+            verify(loginRepository).upsertLastLogin(uuid.toString(), "MinID", 2000);
+            verify(userRepository, never()).findByUuid(any(UUID.class));
+            verify(userRepository, never()).save(any(UserEntity.class));
+            verify(eventPublisher).publishEvent(any(UserUpdatedEvent.class));
+        }
+
+        @Test
+        @DisplayName("for several users then the logins are upserted in one statement and the users loaded in one query")
+        public void testUpdateLastLogins() {
+            UUID first = UUID.randomUUID();
+            UUID second = UUID.randomUUID();
+            List<LastLogin> lastLogins = List.of(new LastLogin(first, "MinID", 2000), new LastLogin(first, "BankID", 2000), new LastLogin(second, "MinID", 3000));
+            when(userRepository.findByUuidIn(Set.of(first, second))).thenReturn(List.of(
+                    UserEntity.builder().personIdentifier("1263").uuid(first).build(),
+                    UserEntity.builder().personIdentifier("1264").uuid(second).build()));
+
+            List<IDPortenUser> updatedUsers = userService.updateLastLogins(lastLogins);
+
+            assertEquals(2, updatedUsers.size());
+            verify(loginRepository).upsertLastLogins(lastLogins);
+            verify(eventPublisher, times(2)).publishEvent(any(UserUpdatedEvent.class));
+        }
+    }
+
+    @Nested
+    @DisplayName("When finding a user")
+    public class FetchPlanTest {
+
+        @Test
+        @DisplayName("then previous users are not loaded")
+        public void testFindUser() {
+            UserEntity previousUser = UserEntity.builder().personIdentifier("1263").active(false).uuid(UUID.randomUUID()).build();
+            UserEntity userEntity = UserEntity.builder().personIdentifier("5555").active(true).uuid(UUID.randomUUID()).previousUser(previousUser).build();
+            when(userRepository.findByUuid(userEntity.getUuid())).thenReturn(Optional.of(userEntity));
+
+            IDPortenUser user = userService.findUser(userEntity.getUuid());
+
+            assertEquals(userEntity.getUuid(), user.getId());
+            assertNull(user.getPreviousUser());
+            verify(userRepository, never()).findHistory(any(), anyInt());
+        }
+
+        @Test
+        @DisplayName("with history then previous users are loaded newest first")
+        public void testFindUserWithHistory() {
+            UserEntity oldest = UserEntity.builder().personIdentifier("1111").active(false).uuid(UUID.randomUUID()).build();
+            UserEntity previous = UserEntity.builder().personIdentifier("2222").active(false).uuid(UUID.randomUUID()).previousUser(oldest).build();
+            UserEntity userEntity = UserEntity.builder().personIdentifier("3333").active(true).uuid(UUID.randomUUID()).previousUser(previous).build();
+            when(userRepository.findByPersonIdentifier("3333")).thenReturn(Optional.of(userEntity));
+            when(userRepository.findHistory(userEntity.getUuid().toString(), DirectUserService.MAX_HISTORY_DEPTH))
+                    .thenReturn(List.of(userEntity.getUuid().toString(), previous.getUuid().toString(), oldest.getUuid().toString()));
+            when(userRepository.findByUuidIn(List.of(previous.getUuid(), oldest.getUuid()))).thenReturn(List.of(oldest, previous));
+
+            IDPortenUser user = userService.searchForUser("3333", FetchPlan.HISTORY).orElseThrow();
+
+            assertEquals(previous.getUuid(), user.getPreviousUser().getId());
+            assertEquals(oldest.getUuid(), user.getPreviousUser().getPreviousUser().getId());
+            assertNull(user.getPreviousUser().getPreviousUser().getPreviousUser());
+        }
+    }
+
     @Nested
     @DisplayName("When user")
     public class ChangePidTest {
@@ -244,5 +326,21 @@ public class DirectUserServiceTest {
             verify(userRepository).findByPersonIdentifier(newPersonIdentifier);
             verify(userRepository, times(2)).save(any(UserEntity.class));
         }
+
+        @Test
+        @DisplayName("change pid again then the previous user of the old user is kept")
+        public void changePidTwiceTest() {
+            UserEntity firstUser = UserEntity.builder().personIdentifier("1111").active(false).uuid(UUID.randomUUID()).build();
+            UserEntity userEntity = UserEntity.builder().personIdentifier("1263").active(true).uuid(UUID.randomUUID()).previousUser(firstUser).build();
+            when(userRepository.findByPersonIdentifier("1263")).thenReturn(Optional.of(userEntity));
+            when(userRepository.findByPersonIdentifier("5555")).thenReturn(Optional.empty());
+            when(userRepository.save(any(UserEntity.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+            userService.changePid("1263", "5555");
+
+            verify(userRepository).save(userEntity);
+            assertFalse(userEntity.isActive());
+            assertSame(firstUser, userEntity.getPreviousUser());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+package no.idporten.userservice.data;
+
+import jakarta.annotation.Resource;
+import jakarta.persistence.EntityManagerFactory;
+import no.idporten.userservice.BaseRedisTest;
+import no.idporten.userservice.TestData;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+public class LoginRepositoryTest extends BaseRedisTest {
+
+    @Resource
+    private LoginRepository loginRepository;
+
+    @Resource
+    private UserRepository userRepository;
+
+    @Resource
+    private DirectUserService userService;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private EntityManagerFactory entityManagerFactory;
+
+    @Nested
+    @DisplayName("When upserting the last login of a user")
+    public class UpsertLastLoginTest {
+
+        @Test
+        @DisplayName("then a login not seen before is inserted with the same first and last login")
+        void testInserted() {
+            UUID userUuid = createUser();
+
+            transactionTemplate.executeWithoutResult(status -> loginRepository.upsertLastLogin(userUuid.toString(), "MinID", 1000));
+
+            Login login = login(userUuid, "MinID");
+            assertEquals(Instant.ofEpochMilli(1000), login.getFirstLogin());
+            assertEquals(Instant.ofEpochMilli(1000), login.getLastLogin());
+        }
+
+        @Test
+        @DisplayName("then the last login moves forward but never backward, and the first login is left untouched")
+        void testNeverBackward() {
+            UUID userUuid = createUser();
+
+            transactionTemplate.executeWithoutResult(status -> {
+                loginRepository.upsertLastLogin(userUuid.toString(), "MinID", 1000);
+                loginRepository.upsertLastLogin(userUuid.toString(), "MinID", 3000);
+                loginRepository.upsertLastLogin(userUuid.toString(), "MinID", 2000);
+            });
+
+            Login login = login(userUuid, "MinID");
+            assertEquals(Instant.ofEpochMilli(1000), login.getFirstLogin());
+            assertEquals(Instant.ofEpochMilli(3000), login.getLastLogin());
+        }
+
+    }
+
+    @Nested
+    @DisplayName("When upserting the last logins of several users")
+    public class UpsertLastLoginsTest {
+
+        @Test
+        @DisplayName("then new logins are inserted, and last logins move forward but never backward")
+        void testUpserted() {
+            UUID firstUser = createUser();
+            UUID secondUser = createUser();
+            transactionTemplate.executeWithoutResult(status -> loginRepository.upsertLastLogins(List.of(
+                    new LastLogin(firstUser, "MinID", 1000), new LastLogin(secondUser, "MinID", 1000))));
+
+            transactionTemplate.executeWithoutResult(status -> loginRepository.upsertLastLogins(List.of(
+                    new LastLogin(firstUser, "MinID", 3000), new LastLogin(secondUser, "MinID", 500),
+                    new LastLogin(secondUser, "BankID", 2000))));
+
+            assertEquals(Instant.ofEpochMilli(1000), login(firstUser, "MinID").getFirstLogin());
+            assertEquals(Instant.ofEpochMilli(3000), login(firstUser, "MinID").getLastLogin());
+            assertEquals(Instant.ofEpochMilli(1000), login(secondUser, "MinID").getFirstLogin());
+            assertEquals(Instant.ofEpochMilli(1000), login(secondUser, "MinID").getLastLogin());
+            assertEquals(Instant.ofEpochMilli(2000), login(secondUser, "BankID").getFirstLogin());
+            assertEquals(Instant.ofEpochMilli(2000), login(secondUser, "BankID").getLastLogin());
+        }
+
+        @Test
+        @DisplayName("then more than 500 logins are split into several statements")
+        void testSplit() {
+            UUID userUuid = createUser();
+            List<LastLogin> lastLogins = IntStream.range(0, 501)
+                    .mapToObj(i -> new LastLogin(userUuid, "eID-" + i, 1000))
+                    .toList();
+            Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+            statistics.setStatisticsEnabled(true);
+            statistics.clear();
+
+            try {
+                transactionTemplate.executeWithoutResult(status -> loginRepository.upsertLastLogins(lastLogins));
+                assertEquals(2, statistics.getPrepareStatementCount());
+            } finally {
+                statistics.setStatisticsEnabled(false);
+            }
+            assertEquals(501, userService.findUser(userUuid).getLogins().size());
+        }
+
+    }
+
+    private UUID createUser() {
+        return userRepository.save(UserEntity.builder()
+                .personIdentifier(TestData.randomSynpid())
+                .active(Boolean.TRUE)
+                .build()).getUuid();
+    }
+
+    private Login login(UUID userUuid, String eidName) {
+        return userService.findUser(userUuid).getLogins().stream()
+                .filter(login -> eidName.equals(login.getEidName()))
+                .findFirst()
+                .orElseThrow();
+    }
+
+}
@@ -0,0 +1,233 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import no.idporten.userservice.data.message.UpdateEidMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.util.unit.DataSize;
+
+import javax.sql.DataSource;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When spooling login updates locally")
+class LoginUpdateSpoolTest {
+
+    @TempDir
+    Path directory;
+
+    private RedisTemplate<String, String> redisTemplate;
+    private DirectUserService userService;
+    private UpdateLastLoginStreamProperties streamProperties;
+    private SimpleMeterRegistry meterRegistry;
+    private LoginUpdateSpool spool;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        redisTemplate = mock(RedisTemplate.class);
+        userService = mock(DirectUserService.class);
+        streamProperties = new UpdateLastLoginStreamProperties();
+        streamProperties.getSpool().setDirectory(directory.toString());
+        streamProperties.getSpool().setSize(DataSize.ofKilobytes(64));
+        meterRegistry = new SimpleMeterRegistry();
+        spool = newSpool();
+    }
+
+    @AfterEach
+    void tearDown() {
+        spool.close();
+    }
+
+    private LoginUpdateSpool newSpool() {
+        DatabaseCircuitBreaker circuitBreaker = new DatabaseCircuitBreaker(mock(DataSource.class), streamProperties, meterRegistry);
+        return new LoginUpdateSpool(redisTemplate, userService, circuitBreaker, streamProperties, meterRegistry);
+    }
+
+    private static UpdateEidMessage message(UUID userId, long loginTime) {
+        return new UpdateEidMessage(userId, loginTime, "MinID");
+    }
+
+    @Test
+    @DisplayName("then login updates are read back in the order they were appended")
+    void testOrder() {
+        UpdateEidMessage first = message(UUID.randomUUID(), 1000);
+        UpdateEidMessage second = new UpdateEidMessage(UUID.randomUUID(), 2000, "BankID på mobil");
+        assertFalse(spool.isSpooling());
+
+        assertTrue(spool.append(first));
+        assertTrue(spool.append(second));
+
+        assertTrue(spool.isSpooling());
+        LoginUpdateSpool.Batch batch = spool.next(10);
+        assertEquals(List.of(first, second), batch.messages());
+        spool.advance(batch.length());
+        assertFalse(spool.isSpooling());
+        assertEquals(0, spool.used());
+    }
+
+    @Test
+    @DisplayName("then spooled login updates survive a restart")
+    void testRestart() {
+        UpdateEidMessage message = message(UUID.randomUUID(), 1000);
+        spool.append(message);
+        spool.close();
+
+        spool = newSpool();
+
+        assertTrue(spool.isSpooling());
+        assertEquals(List.of(message), spool.next(10).messages());
+    }
+
+    @Test
+    @DisplayName("then a corrupt spool file is replaced by an empty spool")
+    void testCorrupt() throws Exception {
+        spool.close();
+        Files.write(directory.resolve("update-last-login-local.spool"), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+        spool = newSpool();
+
+        assertFalse(spool.isSpooling());
+        assertTrue(spool.append(message(UUID.randomUUID(), 1000)));
+    }
+
+    @Test
+    @DisplayName("then login updates are refused when the spool is full, and accepted again once handled ones are removed")
+    void testFull() {
+        spool.close();
+        streamProperties.getSpool().setDirectory(directory.resolve("small").toString());
+        streamProperties.getSpool().setSize(DataSize.ofBytes(LoginUpdateSpool.HEADER_SIZE + 2 * 35));
+        spool = newSpool();
+
+        assertTrue(spool.append(message(UUID.randomUUID(), 1000)));
+        assertTrue(spool.append(message(UUID.randomUUID(), 2000)));
+        assertFalse(spool.append(message(UUID.randomUUID(), 3000)));
+
+        spool.advance(spool.next(1).length());
+        UpdateEidMessage last = message(UUID.randomUUID(), 4000);
+        assertTrue(spool.append(last));
+        assertEquals(last, spool.next(10).messages().getLast());
+        assertEquals(1, meterRegistry.get("user.stream.spool.records").tag("result", "dropped").counter().count());
+    }
+
+    @Test
+    @DisplayName("then nothing is spooled when the spool is turned off")
+    void testDisabled() {
+        spool.close();
+        streamProperties.getSpool().setEnabled(false);
+        spool = newSpool();
+
+        assertFalse(spool.append(message(UUID.randomUUID(), 1000)));
+        assertFalse(spool.isSpooling());
+    }
+
+    @Test
+    @DisplayName("then the spool is drained to the stream when Redis is back")
+    void testDrainToStream() {
+        spool.append(message(UUID.randomUUID(), 1000));
+        spool.append(message(UUID.randomUUID(), 2000));
+        when(redisTemplate.executePipelined(any(SessionCallback.class))).thenReturn(List.of());
+
+        spool.drain();
+
+        assertFalse(spool.isSpooling());
+        verify(redisTemplate, times(1)).executePipelined(any(SessionCallback.class));
+        verifyNoInteractions(userService);
+        assertEquals(2, meterRegistry.get("user.stream.spool.records").tag("result", "streamed").counter().count());
+    }
+
+    @Test
+    @DisplayName("then the spool is drained to the database while Redis is still unavailable")
+    @SuppressWarnings("unchecked")
+    void testDrainToDatabase() {
+        UUID userId = UUID.randomUUID();
+        spool.append(message(userId, 1000));
+        spool.append(message(userId, 3000));
+        spool.append(new UpdateEidMessage(userId, 2000, "minid"));
+        when(redisTemplate.executePipelined(any(SessionCallback.class))).thenThrow(new RedisConnectionFailureException("Connection refused"));
+
+        spool.drain();
+
+        assertFalse(spool.isSpooling());
+        ArgumentCaptor<List<LastLogin>> lastLogins = ArgumentCaptor.forClass(List.class);
+        verify(userService).updateLastLogins(lastLogins.capture());
+        assertEquals(List.of(new LastLogin(userId, "MinID", 3000)), lastLogins.getValue());
+    }
+
+    @Test
+    @DisplayName("then Redis is unavailable from a failed drain until the spool is drained to the stream again")
+    void testRedisUnavailable() {
+        streamProperties.setBatchSize(1);
+        spool.append(message(UUID.randomUUID(), 1000));
+        spool.append(message(UUID.randomUUID(), 2000));
+        when(redisTemplate.executePipelined(any(SessionCallback.class))).thenThrow(new RedisConnectionFailureException("Connection refused"));
+
+        spool.drain();
+
+        assertTrue(spool.isRedisUnavailable());
+        // the second batch went to the database without trying Redis again
+        verify(redisTemplate, times(1)).executePipelined(any(SessionCallback.class));
+        verify(userService, times(2)).updateLastLogins(any());
+
+        spool.append(message(UUID.randomUUID(), 3000));
+        reset(redisTemplate);
+        when(redisTemplate.executePipelined(any(SessionCallback.class))).thenReturn(List.of());
+
+        spool.drain();
+
+        assertFalse(spool.isRedisUnavailable());
+        assertFalse(spool.isSpooling());
+    }
+
+    @Test
+    @DisplayName("then login updates rejected by the database are dropped, so they do not block the spool")
+    void testDrainRejected() {
+        UUID rejected = UUID.randomUUID();
+        UUID accepted = UUID.randomUUID();
+        spool.append(message(rejected, 1000));
+        spool.append(message(accepted, 1000));
+        when(redisTemplate.executePipelined(any(SessionCallback.class))).thenThrow(new RedisConnectionFailureException("Connection refused"));
+        when(userService.updateLastLogins(any())).thenAnswer(invocation -> {
+            List<LastLogin> lastLogins = invocation.getArgument(0);
+            if (lastLogins.stream().anyMatch(lastLogin -> lastLogin.userUuid().equals(rejected))) {
+                throw new DataIntegrityViolationException("User is deleted");
+            }
+            return List.of();
+        });
+
+        spool.drain();
+
+        assertFalse(spool.isSpooling());
+        verify(userService).updateLastLogins(List.of(new LastLogin(accepted, "MinID", 1000)));
+        assertEquals(1, meterRegistry.get("user.stream.spool.records").tag("result", "dropped").counter().count());
+    }
+
+    @Test
+    @DisplayName("then login updates stay in the spool while both Redis and the database are unavailable")
+    void testDrainBothDown() {
+        spool.append(message(UUID.randomUUID(), 1000));
+        when(redisTemplate.executePipelined(any(SessionCallback.class))).thenThrow(new RedisConnectionFailureException("Connection refused"));
+        when(userService.updateLastLogins(any())).thenThrow(new DataAccessResourceFailureException("Connection refused"));
+
+        spool.drain();
+
+        assertTrue(spool.isSpooling());
+    }
+
+}
@@ -0,0 +1,149 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import no.idporten.userservice.data.message.UpdateEidMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When writing login updates directly to the database while the stream lags behind")
+class LoginUpdateWriteBehindTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final DirectUserService userService = mock(DirectUserService.class);
+    private final UpdateLastLoginStreamMetrics streamMetrics = mock(UpdateLastLoginStreamMetrics.class);
+    private final LoginUpdateSpool loginUpdateSpool = mock(LoginUpdateSpool.class);
+    private final UpdateLastLoginStreamProperties streamProperties = new UpdateLastLoginStreamProperties();
+    private final DatabaseCircuitBreaker circuitBreaker = new DatabaseCircuitBreaker(mock(DataSource.class), streamProperties, meterRegistry);
+    private final LoginUpdateWriteBehind writeBehind = new LoginUpdateWriteBehind(userService, circuitBreaker, streamMetrics,
+            loginUpdateSpool, streamProperties, meterRegistry);
+
+    @AfterEach
+    void tearDown() {
+        if (writeBehind.isRunning()) {
+            writeBehind.stop();
+        }
+    }
+
+    private void lag(Duration lag) {
+        when(streamMetrics.maxLag()).thenReturn(lag);
+        writeBehind.update();
+    }
+
+    @Test
+    @DisplayName("then login updates go through the stream while it keeps up")
+    void testKeepingUp() {
+        writeBehind.start();
+        lag(Duration.ofSeconds(5));
+
+        assertFalse(writeBehind.offer(message(UUID.randomUUID(), 1000)));
+        assertEquals(0.0, meterRegistry.get("user.stream.direct").gauge().value());
+    }
+
+    @Test
+    @DisplayName("then login updates are written directly from max-lag until the lag is below half of it")
+    void testHysteresis() {
+        writeBehind.start();
+        lag(Duration.ofSeconds(31));
+        assertTrue(writeBehind.isDirect());
+        assertEquals(1.0, meterRegistry.get("user.stream.direct").gauge().value());
+
+        lag(Duration.ofSeconds(20));
+        assertTrue(writeBehind.isDirect());
+
+        lag(Duration.ofSeconds(14));
+        assertFalse(writeBehind.isDirect());
+    }
+
+    @Test
+    @DisplayName("then nothing is written directly when turned off")
+    void testDisabled() {
+        streamProperties.getDirectFallback().setEnabled(false);
+        LoginUpdateWriteBehind disabled = new LoginUpdateWriteBehind(userService, circuitBreaker, streamMetrics, loginUpdateSpool,
+                streamProperties, new SimpleMeterRegistry());
+        when(streamMetrics.maxLag()).thenReturn(Duration.ofHours(1));
+
+        disabled.update();
+
+        assertFalse(disabled.isDirect());
+    }
+
+    @Test
+    @DisplayName("then queued login updates are written in batches with the latest login of each user")
+    void testBatch() {
+        lag(Duration.ofMinutes(1));
+        writeBehind.start();
+        UUID userId = UUID.randomUUID();
+
+        assertTrue(writeBehind.offer(message(userId, 1000)));
+        assertTrue(writeBehind.offer(message(userId, 2000)));
+        writeBehind.stop();
+
+        verify(userService).updateLastLogins(List.of(new LastLogin(userId, "MinID", 2000)));
+        assertEquals(2.0, meterRegistry.get("user.stream.direct.records").tag("result", "written").counter().count());
+    }
+
+    @Test
+    @DisplayName("then a failing batch is moved to the stream")
+    void testFailure() {
+        when(userService.updateLastLogins(any())).thenThrow(new DataAccessResourceFailureException("Connection refused"));
+        UpdateEidMessage first = message(UUID.randomUUID(), 1000);
+        UpdateEidMessage second = message(UUID.randomUUID(), 1000);
+
+        writeBehind.write(List.of(first, second));
+
+        verify(loginUpdateSpool).addToStream(List.of(first, second));
+        verify(loginUpdateSpool, never()).append(any());
+        assertEquals(2.0, meterRegistry.get("user.stream.direct.records").tag("result", "streamed").counter().count());
+    }
+
+    @Test
+    @DisplayName("then a failing batch is spooled when it can not be added to the stream either")
+    void testFailureRedisDown() {
+        when(userService.updateLastLogins(any())).thenThrow(new DataAccessResourceFailureException("Connection refused"));
+        RedisConnectionFailureException redisDown = new RedisConnectionFailureException("Connection refused");
+        doThrow(redisDown).when(loginUpdateSpool).addToStream(any());
+        UpdateEidMessage first = message(UUID.randomUUID(), 1000);
+        UpdateEidMessage second = message(UUID.randomUUID(), 1000);
+        when(loginUpdateSpool.append(first)).thenReturn(true);
+
+        writeBehind.write(List.of(first, second));
+
+        verify(loginUpdateSpool).redisUnavailable(redisDown);
+        verify(loginUpdateSpool).append(first);
+        verify(loginUpdateSpool).append(second);
+        assertEquals(1.0, meterRegistry.get("user.stream.direct.records").tag("result", "spooled").counter().count());
+        assertEquals(1.0, meterRegistry.get("user.stream.direct.records").tag("result", "dropped").counter().count());
+    }
+
+    @Test
+    @DisplayName("then login updates go through the stream while the database is down")
+    void testDatabaseDown() {
+        writeBehind.start();
+        lag(Duration.ofMinutes(1));
+        for (int i = 0; i < streamProperties.getCircuitBreaker().getFailureThreshold(); i++) {
+            assertThrows(DataAccessResourceFailureException.class, () -> circuitBreaker.execute(() -> {
+                throw new DataAccessResourceFailureException("Connection refused");
+            }));
+        }
+
+        assertFalse(writeBehind.offer(message(UUID.randomUUID(), 1000)));
+    }
+
+    private static UpdateEidMessage message(UUID userId, long loginTime) {
+        return new UpdateEidMessage(userId, loginTime, "MinID");
+    }
+
+}
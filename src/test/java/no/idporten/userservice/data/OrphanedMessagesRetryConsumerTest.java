@@ -1,5 +1,7 @@
 package no.idporten.userservice.data;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -12,6 +14,7 @@ import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StreamOperations;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
+import javax.sql.DataSource;
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
@@ -34,6 +37,9 @@ class OrphanedMessagesRetryConsumerTest {
     @Mock
     private StreamOperations<String, Object, Object> streamOps;
 
+    @Mock
+    private DeadLetterStream deadLetterStream;
+
     private OrphanedMessagesRetryConsumer consumer;
 
 
@@ -41,7 +47,9 @@ class OrphanedMessagesRetryConsumerTest {
     void setup() {
         MockitoAnnotations.openMocks(this);
         when(redisTemplate.opsForStream()).thenReturn(streamOps);
-        consumer = new OrphanedMessagesRetryConsumer(redisTemplate, directUserService);
+        consumer = new OrphanedMessagesRetryConsumer(redisTemplate, directUserService,
+                new DatabaseCircuitBreaker(mock(DataSource.class), new UpdateLastLoginStreamProperties(), new SimpleMeterRegistry()),
+                new UpdateLastLoginStreamProperties(), deadLetterStream);
     }
 
     @Test
@@ -62,6 +70,7 @@ class OrphanedMessagesRetryConsumerTest {
         values.put("loginTimeInEpochMillis", "1688630496413");
 
         when(updateEidMessage.getValue()).thenReturn(values);
+        when(updateEidMessage.getId()).thenReturn(orphan.getId());
 
         when(streamOps.claim(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, consumer.consumerName, Duration.ofSeconds(10), orphan.getId()))
                 .thenReturn(List.of(updateEidMessage));
@@ -71,5 +80,7 @@ class OrphanedMessagesRetryConsumerTest {
         verify(streamOps, times(1))
                 .claim(eq(UPDATE_LAST_LOGIN_STREAM), eq(UPDATE_LAST_LOGIN_GROUP), anyString(), eq(Duration.ofSeconds(10)),
                         eq(orphan.getId()));
+        verify(directUserService).updateLastLogins(List.of(new LastLogin(UUID.fromString((String) values.get("userId")), "TestEid", 1688630496413L)));
+        verify(streamOps).acknowledge(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, orphan.getId());
     }
 }
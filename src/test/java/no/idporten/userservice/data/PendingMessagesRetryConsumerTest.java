@@ -1,22 +1,32 @@
 package no.idporten.userservice.data;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.PessimisticLockingFailureException;
 import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StreamOperations;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.transaction.CannotCreateTransactionException;
 
+import javax.sql.DataSource;
 import java.time.Duration;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
 import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -31,51 +41,224 @@ class PendingMessagesRetryConsumerTest {
     @Mock
     private StreamOperations<String, Object, Object> streamOps;
 
+    @Mock
+    private DeadLetterStream deadLetterStream;
+
+    private final UpdateLastLoginStreamProperties streamProperties = new UpdateLastLoginStreamProperties();
+
+    private DatabaseCircuitBreaker circuitBreaker;
+
     private PendingMessagesRetryConsumer consumer;
 
     @BeforeEach
     void setup() {
         MockitoAnnotations.openMocks(this);
         when(redisTemplate.opsForStream()).thenReturn(streamOps);
-        consumer = new PendingMessagesRetryConsumer(redisTemplate, directUserService);
+        circuitBreaker = new DatabaseCircuitBreaker(mock(DataSource.class), streamProperties, new SimpleMeterRegistry());
+        consumer = new PendingMessagesRetryConsumer(redisTemplate, directUserService, circuitBreaker, streamProperties, deadLetterStream);
     }
 
     @Test
-    @DisplayName("When checking for pending messages, then they are claimed and processed")
+    @DisplayName("When checking for pending messages, then they are claimed, processed and acknowledged together")
     void testHandlePendingMessages() {
-        // Mock pending messages
-        PendingMessage pendingMessage = mock(PendingMessage.class);
-        when(pendingMessage.getId()).thenReturn(RecordId.of("1-0"));
-        when(pendingMessage.getIdAsString()).thenReturn("1-0");
-        PendingMessages pendingMessages = mock(PendingMessages.class);
-        when(pendingMessages.iterator()).thenReturn(Collections.singletonList(pendingMessage).iterator());
-        when(streamOps.pending(
-                anyString(),
-                any(Consumer.class),
-                any(Range.class),
-                anyLong()
-        )).thenReturn(pendingMessages);
-
-        // Mock claimed message
-        Map<Object, Object> messageBody = Map.of(
-                "userId", UUID.randomUUID().toString(),
-                "eidName", "testEid",
-                "loginTimeInEpochMillis", String.valueOf(System.currentTimeMillis())
-        );
-        MapRecord<String, Object, Object> claimedRecord = mock(MapRecord.class);
-        when(claimedRecord.getId()).thenReturn(RecordId.of("1-0"));
-        when(claimedRecord.getValue()).thenReturn(messageBody);
-        when(streamOps.claim(
-                eq(UPDATE_LAST_LOGIN_STREAM),
-                eq(UPDATE_LAST_LOGIN_GROUP),
-                anyString(),
-                eq(Duration.ofSeconds(10L)),
-                eq(RecordId.of("1-0"))
-        )).thenReturn(Collections.singletonList(claimedRecord));
+        UUID firstUser = UUID.randomUUID();
+        UUID secondUser = UUID.randomUUID();
+        pending(pendingMessage("1-0", 1, Duration.ofSeconds(30)), pendingMessage("1-1", 1, Duration.ofSeconds(30)));
+        claimed(record("1-0", firstUser, 1000), record("1-1", secondUser, 2000));
+
+        consumer.handlePendingMessages();
+
+        verify(streamOps).claim(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, consumer.consumerName, Duration.ofSeconds(10L), RecordId.of("1-0"), RecordId.of("1-1"));
+        verify(directUserService).updateLastLogins(List.of(new LastLogin(firstUser, "testEid", 1000), new LastLogin(secondUser, "testEid", 2000)));
+        verify(streamOps).acknowledge(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, RecordId.of("1-0"), RecordId.of("1-1"));
+        verify(directUserService, never()).updateUserWithEid(any(UUID.class), any());
+    }
+
+    @Test
+    @DisplayName("When pending messages have not waited out their backoff, then they are not claimed")
+    void testBackoff() {
+        UUID userId = UUID.randomUUID();
+        // the third delivery waits 40 seconds
+        pending(pendingMessage("1-0", 3, Duration.ofSeconds(30)), pendingMessage("1-1", 3, Duration.ofSeconds(50)));
+        claimed(record("1-1", userId, 1000));
 
         consumer.handlePendingMessages();
 
+        verify(streamOps).claim(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, consumer.consumerName, Duration.ofSeconds(10L), RecordId.of("1-1"));
+        verify(streamOps).acknowledge(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, RecordId.of("1-1"));
+    }
+
+    @Test
+    @DisplayName("When a message keeps failing, then it is moved to the dead-letter stream at max deliveries")
+    void testDeadLetter() {
+        UUID deletedUser = UUID.randomUUID();
+        UUID otherUser = UUID.randomUUID();
+        MapRecord<String, Object, Object> poisoned = record("1-0", deletedUser, 1000);
+        pending(pendingMessage("1-0", 9, Duration.ofHours(2)), pendingMessage("1-1", 1, Duration.ofSeconds(30)));
+        claimed(poisoned, record("1-1", otherUser, 1000));
+        DataIntegrityViolationException failure = new DataIntegrityViolationException("eid_user_fk");
+        when(directUserService.updateLastLogins(argThat(logins -> logins.size() > 1 || logins.getFirst().userUuid().equals(deletedUser))))
+                .thenThrow(failure);
+
+        consumer.handlePendingMessages();
+
+        verify(deadLetterStream).add(UPDATE_LAST_LOGIN_STREAM, poisoned, 10, failure);
+        verify(streamOps).acknowledge(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, RecordId.of("1-1"), RecordId.of("1-0"));
+    }
+
+    @Test
+    @DisplayName("When a message keeps failing because the database is unavailable, then it is left pending past max deliveries")
+    void testTransientFailureNotDeadLettered() {
+        pending(pendingMessage("1-0", 9, Duration.ofHours(2)), pendingMessage("1-1", 12, Duration.ofHours(2)));
+        claimed(record("1-0", UUID.randomUUID(), 1000), record("1-1", UUID.randomUUID(), 1000));
+        when(directUserService.updateLastLogins(any()))
+                .thenThrow(new CannotCreateTransactionException("Could not open JPA EntityManager for transaction"))
+                .thenThrow(new CannotCreateTransactionException("Could not open JPA EntityManager for transaction"))
+                .thenThrow(new PessimisticLockingFailureException("Lock wait timeout exceeded"));
+
+        consumer.handlePendingMessages();
+
+        verify(directUserService, times(3)).updateLastLogins(any());
+        verify(deadLetterStream, never()).add(anyString(), any(), anyLong(), any());
+        verify(streamOps, never()).acknowledge(anyString(), anyString(), any(RecordId[].class));
+    }
+
+    @Test
+    @DisplayName("When a message fails before max deliveries, then it is left pending")
+    void testFailedLeftPending() {
+        pending(pendingMessage("1-0", 2, Duration.ofSeconds(30)));
+        claimed(record("1-0", UUID.randomUUID(), 1000));
+        when(directUserService.updateLastLogins(any())).thenThrow(new DataIntegrityViolationException("eid_user_fk"));
+
+        consumer.handlePendingMessages();
+
+        verify(deadLetterStream, never()).add(anyString(), any(), anyLong(), any());
+        verify(streamOps, never()).acknowledge(anyString(), anyString(), any(RecordId[].class));
+    }
+
+    @Test
+    @DisplayName("When a message can not be read, then it is moved to the dead-letter stream right away")
+    void testUnreadableDeadLetter() {
+        MapRecord<String, Object, Object> unreadable = MapRecord.create(UPDATE_LAST_LOGIN_STREAM, Map.<Object, Object>of("eidName", "testEid")).withId(RecordId.of("1-0"));
+        pending(pendingMessage("1-0", 1, Duration.ofSeconds(30)));
+        claimed(unreadable);
+
+        consumer.handlePendingMessages();
+
+        verify(deadLetterStream).add(eq(UPDATE_LAST_LOGIN_STREAM), eq(unreadable), eq(2L), any(RuntimeException.class));
         verify(streamOps).acknowledge(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, RecordId.of("1-0"));
-        verify(directUserService).updateUserWithEid(any(UUID.class), any());
     }
+
+    @Test
+    @DisplayName("When there are more pending messages than one page, then the next page starts after the last one")
+    void testPaging() {
+        List<PendingMessage> page = new ArrayList<>();
+        for (int i = 0; i < PendingMessagesRetryConsumer.PAGE_SIZE; i++) {
+            page.add(pendingMessage("1-" + i, 1, Duration.ofSeconds(5)));
+        }
+        when(streamOps.pending(eq(UPDATE_LAST_LOGIN_STREAM), eq(UPDATE_LAST_LOGIN_GROUP), any(Range.class), anyLong(), any(Duration.class)))
+                .thenReturn(new PendingMessages(UPDATE_LAST_LOGIN_GROUP, page), new PendingMessages(UPDATE_LAST_LOGIN_GROUP, List.of()));
+
+        consumer.handlePendingMessages();
+
+        verify(streamOps).pending(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, Range.unbounded(), PendingMessagesRetryConsumer.PAGE_SIZE, Duration.ofSeconds(10));
+        verify(streamOps).pending(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, Range.rightUnbounded(Range.Bound.inclusive("1-500")),
+                PendingMessagesRetryConsumer.PAGE_SIZE, Duration.ofSeconds(10));
+    }
+
+    @Test
+    @DisplayName("When the database is down, then pending messages are not claimed")
+    void testDatabaseDown() {
+        pending(pendingMessage("1-0", 1, Duration.ofSeconds(30)));
+        for (int i = 0; i < streamProperties.getCircuitBreaker().getFailureThreshold(); i++) {
+            assertThrows(DataAccessResourceFailureException.class, () -> circuitBreaker.execute(() -> {
+                throw new DataAccessResourceFailureException("Connection refused");
+            }));
+        }
+
+        consumer.handlePendingMessages();
+
+        verify(streamOps, never()).pending(anyString(), anyString(), any(Range.class), anyLong(), any(Duration.class));
+        verify(streamOps, never()).claim(anyString(), anyString(), anyString(), any(Duration.class), any(RecordId[].class));
+        verify(directUserService, never()).updateLastLogins(any());
+    }
+
+    @Test
+    @DisplayName("When the database goes down while retrying, then the remaining messages are left pending")
+    void testDatabaseGoesDown() {
+        streamProperties.getCircuitBreaker().setFailureThreshold(1);
+        pending(pendingMessage("1-0", 9, Duration.ofHours(2)), pendingMessage("1-1", 9, Duration.ofHours(2)));
+        claimed(record("1-0", UUID.randomUUID(), 1000), record("1-1", UUID.randomUUID(), 1000));
+        circuitBreaker = new DatabaseCircuitBreaker(mock(DataSource.class), streamProperties, new SimpleMeterRegistry());
+        consumer = new PendingMessagesRetryConsumer(redisTemplate, directUserService, circuitBreaker, streamProperties, deadLetterStream);
+        when(directUserService.updateLastLogins(any())).thenThrow(new DataAccessResourceFailureException("Connection refused"));
+
+        consumer.handlePendingMessages();
+
+        verify(directUserService, times(1)).updateLastLogins(any());
+        verify(deadLetterStream, never()).add(anyString(), any(), anyLong(), any());
+        verify(streamOps, never()).acknowledge(anyString(), anyString(), any(RecordId[].class));
+    }
+
+    @Test
+    @DisplayName("When the consumer group is missing in Redis, then it is recreated from the start of the stream")
+    void testRecreatesMissingGroup() {
+        when(streamOps.pending(anyString(), anyString(), any(Range.class), anyLong(), any(Duration.class)))
+                .thenThrow(new RedisSystemException("NOGROUP No such key 'update-last-login' or consumer group", null));
+
+        consumer.handlePendingMessages();
+
+        verify(streamOps).createGroup(UPDATE_LAST_LOGIN_STREAM, ReadOffset.from("0"), UPDATE_LAST_LOGIN_GROUP);
+        verify(streamOps, never()).groups(anyString());
+    }
+
+    @Test
+    @DisplayName("When the consumer group is missing on one partition, then it is recreated there and the other partitions are still checked")
+    void testMissingGroupOnOnePartition() {
+        streamProperties.setPartitions(2);
+        consumer = new PendingMessagesRetryConsumer(redisTemplate, directUserService, circuitBreaker, streamProperties, deadLetterStream);
+        when(streamOps.pending(eq(UPDATE_LAST_LOGIN_STREAM), anyString(), any(Range.class), anyLong(), any(Duration.class)))
+                .thenThrow(new RedisSystemException("NOGROUP No such key 'update-last-login' or consumer group", null));
+
+        consumer.handlePendingMessages();
+
+        verify(streamOps).createGroup(UPDATE_LAST_LOGIN_STREAM, ReadOffset.from("0"), UPDATE_LAST_LOGIN_GROUP);
+        verify(streamOps, never()).createGroup(eq(UPDATE_LAST_LOGIN_STREAM + ":1"), any(ReadOffset.class), anyString());
+        verify(streamOps).pending(eq(UPDATE_LAST_LOGIN_STREAM + ":1"), eq(UPDATE_LAST_LOGIN_GROUP), any(Range.class), anyLong(), any(Duration.class));
+    }
+
+    @Test
+    @DisplayName("When the stream is partitioned, then pending messages are checked in every partition")
+    void testHandlePendingMessagesInAllPartitions() {
+        streamProperties.setPartitions(2);
+        consumer = new PendingMessagesRetryConsumer(redisTemplate, directUserService, circuitBreaker, streamProperties, deadLetterStream);
+
+        consumer.handlePendingMessages();
+
+        verify(streamOps).pending(eq(UPDATE_LAST_LOGIN_STREAM), eq(UPDATE_LAST_LOGIN_GROUP), any(Range.class), anyLong(), any(Duration.class));
+        verify(streamOps).pending(eq(UPDATE_LAST_LOGIN_STREAM + ":1"), eq(UPDATE_LAST_LOGIN_GROUP), any(Range.class), anyLong(), any(Duration.class));
+    }
+
+    private void pending(PendingMessage... pendingMessages) {
+        when(streamOps.pending(eq(UPDATE_LAST_LOGIN_STREAM), eq(UPDATE_LAST_LOGIN_GROUP), any(Range.class), anyLong(), any(Duration.class)))
+                .thenReturn(new PendingMessages(UPDATE_LAST_LOGIN_GROUP, List.of(pendingMessages)));
+    }
+
+    @SafeVarargs
+    private void claimed(MapRecord<String, Object, Object>... records) {
+        when(streamOps.claim(eq(UPDATE_LAST_LOGIN_STREAM), eq(UPDATE_LAST_LOGIN_GROUP), anyString(), any(Duration.class), any(RecordId[].class)))
+                .thenReturn(List.of(records));
+    }
+
+    private static PendingMessage pendingMessage(String id, long deliveries, Duration idle) {
+        return new PendingMessage(RecordId.of(id), Consumer.from(UPDATE_LAST_LOGIN_GROUP, "consumer"), idle, deliveries);
+    }
+
+    private static MapRecord<String, Object, Object> record(String id, UUID userId, long loginTime) {
+        return MapRecord.create(UPDATE_LAST_LOGIN_STREAM, Map.<Object, Object>of(
+                "userId", userId.toString(),
+                "eidName", "testEid",
+                "loginTimeInEpochMillis", String.valueOf(loginTime))).withId(RecordId.of(id));
+    }
+
 }
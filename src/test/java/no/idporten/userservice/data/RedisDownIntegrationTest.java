@@ -0,0 +1,85 @@
+package no.idporten.userservice.data;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Stops Redis, so each subclass has its own Redis rather than the one shared through BaseRedisTest.
+ */
+@SpringBootTest
+@DirtiesContext
+@ActiveProfiles("test")
+abstract class RedisDownIntegrationTest {
+
+    // the in-memory database may be shared with other test contexts, so each subclass logs in its own users
+    private final String pidPrefix;
+
+    @Autowired
+    private CachedUserService userService;
+
+    @Autowired
+    private DirectUserService directUserService;
+
+    @Autowired
+    private LoginUpdateSpool loginUpdateSpool;
+
+    RedisDownIntegrationTest(String pidPrefix) {
+        this.pidPrefix = pidPrefix;
+    }
+
+    static GenericContainer<?> startRedis() {
+        GenericContainer<?> redis = new GenericContainer<>(DockerImageName.parse("redis:alpine")).withExposedPorts(6379);
+        redis.start();
+        return redis;
+    }
+
+    static void registerProperties(DynamicPropertyRegistry registry, GenericContainer<?> redis) {
+        try {
+            String spoolDirectory = Files.createTempDirectory("login-update-spool").toString();
+            registry.add("spring.data.redis.host", redis::getHost);
+            registry.add("spring.data.redis.port", () -> redis.getMappedPort(6379));
+            registry.add("digdir.streams.update-last-login.spool.directory", () -> spoolDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    abstract void stopRedis();
+
+    @Test
+    @DisplayName("then logins succeed without waiting for Redis to time out")
+    public void testLoginWhileRedisIsDown() {
+        IDPortenUser firstUser = directUserService.createUser(IDPortenUser.builder().pid(pidPrefix + "0").build());
+        IDPortenUser secondUser = directUserService.createUser(IDPortenUser.builder().pid(pidPrefix + "1").build());
+        stopRedis();
+
+        // the first login finds Redis unavailable, and may wait for it to time out
+        IDPortenUser loggedIn = userService.updateUserWithEid(firstUser.getId(), Login.builder().eidName("MinID").build());
+        assertEquals(firstUser.getId(), loggedIn.getId());
+        assertTrue(loginUpdateSpool.isRedisUnavailable());
+
+        long start = System.nanoTime();
+        loggedIn = userService.updateUserWithEid(secondUser.getId(), Login.builder().eidName("MinID").build());
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        assertEquals(secondUser.getId(), loggedIn.getId());
+        assertEquals("MinID", loggedIn.getLogins().getFirst().getEidName());
+        assertTrue(elapsed.compareTo(Duration.ofSeconds(1)) < 0, "Login took " + elapsed);
+        assertTrue(loginUpdateSpool.isSpooling());
+    }
+
+}
@@ -0,0 +1,148 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import no.idporten.userservice.data.message.UpdateEidMessage;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.redis.connection.stream.ObjectRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StreamOperations;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When consuming login updates in batches")
+class UpdateEidLoginBatchConsumerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    @SuppressWarnings("unchecked")
+    private final RedisTemplate<String, String> updateEidCache = mock(RedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final StreamOperations<String, Object, Object> streamOperations = mock(StreamOperations.class);
+    private final DirectUserService userService = mock(DirectUserService.class);
+    private final UpdateEidLoginMessagesConsumer consumer;
+
+    UpdateEidLoginBatchConsumerTest() {
+        when(updateEidCache.opsForStream()).thenReturn(streamOperations);
+        consumer = new UpdateEidLoginMessagesConsumer(updateEidCache, userService,
+                new DatabaseCircuitBreaker(mock(DataSource.class), new UpdateLastLoginStreamProperties(), meterRegistry), new UpdateLastLoginStreamProperties(), meterRegistry);
+    }
+
+    @Test
+    @DisplayName("then all updated records are acknowledged in one command and left for trimming")
+    void testAcknowledgedTogether() {
+        ObjectRecord<String, UpdateEidMessage> first = record("1-0", UUID.randomUUID(), "MinID");
+        ObjectRecord<String, UpdateEidMessage> second = record("1-1", UUID.randomUUID(), "BankID");
+
+        consumer.onMessages(List.of(first, second));
+
+        verify(userService, times(1)).updateLastLogins(List.of(
+                new LastLogin(first.getValue().userId(), "MinID", first.getValue().loginTimeInEpochMillis()),
+                new LastLogin(second.getValue().userId(), "BankID", second.getValue().loginTimeInEpochMillis())));
+        verify(streamOperations).acknowledge(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, first.getId(), second.getId());
+        verify(streamOperations, never()).delete(any(), any(RecordId[].class));
+        assertEquals(2.0, meterRegistry.get("user.stream.records").tag("result", "processed").counter().count());
+        assertEquals(1, meterRegistry.get("user.stream.batch").timer().count());
+    }
+
+    @Test
+    @DisplayName("then the delay of the oldest login and the database time are measured once per batch")
+    void testBatchTimers() {
+        long now = System.currentTimeMillis();
+        consumer.onMessages(List.of(record("1-0", UUID.randomUUID(), "MinID", now - 5000), record("1-1", UUID.randomUUID(), "MinID", now)));
+
+        assertEquals(1, meterRegistry.get("user.stream.delay").timer().count());
+        assertTrue(meterRegistry.get("user.stream.delay").timer().max(TimeUnit.MILLISECONDS) >= 5000);
+        assertEquals(1, meterRegistry.get("user.stream.batch.database").timer().count());
+    }
+
+    @Test
+    @DisplayName("then records for the same user and eID are collapsed into one update with the latest login")
+    void testCoalesced() {
+        UUID userId = UUID.randomUUID();
+        ObjectRecord<String, UpdateEidMessage> first = record("1-0", userId, "MinID", 2000);
+        ObjectRecord<String, UpdateEidMessage> second = record("1-1", userId, "minid", 3000);
+        ObjectRecord<String, UpdateEidMessage> third = record("1-2", userId, "MinID", 1000);
+        ObjectRecord<String, UpdateEidMessage> other = record("1-3", userId, "BankID", 1000);
+
+        consumer.onMessages(List.of(first, second, third, other));
+
+        verify(userService).updateLastLogins(List.of(new LastLogin(userId, "minid", 3000), new LastLogin(userId, "BankID", 1000)));
+        verify(streamOperations).acknowledge(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, first.getId(), second.getId(), third.getId(), other.getId());
+        assertEquals(2.0, meterRegistry.get("user.stream.records.coalesced").counter().count());
+    }
+
+    @Test
+    @DisplayName("then records failing are left pending while the others are updated one by one")
+    void testFailedLeftPending() {
+        UUID failingUser = UUID.randomUUID();
+        ObjectRecord<String, UpdateEidMessage> first = record("1-0", failingUser, "MinID", 1000);
+        ObjectRecord<String, UpdateEidMessage> second = record("1-1", UUID.randomUUID(), "MinID", 1000);
+        when(userService.updateLastLogins(argThat(logins -> logins.size() > 1 || logins.getFirst().userUuid().equals(failingUser))))
+                .thenThrow(new DataIntegrityViolationException("eid_user_fk"));
+
+        consumer.onMessages(List.of(first, second));
+
+        verify(streamOperations).acknowledge(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP, second.getId());
+        verify(streamOperations, never()).delete(any(), any(RecordId[].class));
+        assertEquals(1.0, meterRegistry.get("user.stream.records").tag("result", "failed").counter().count());
+    }
+
+    @Test
+    @DisplayName("then nothing is acknowledged when all records fail")
+    void testAllFailed() {
+        when(userService.updateLastLogins(any())).thenThrow(new DataIntegrityViolationException("eid_user_fk"));
+
+        consumer.onMessages(List.of(record("1-0", UUID.randomUUID(), "MinID")));
+
+        verify(streamOperations, never()).acknowledge(any(), any(), any(RecordId[].class));
+        verify(streamOperations, never()).delete(any(), any(RecordId[].class));
+    }
+
+    @Test
+    @DisplayName("then the delay of a single record is measured")
+    void testSingleRecordDelay() {
+        consumer.onMessage(record("1-0", UUID.randomUUID(), "MinID", System.currentTimeMillis() - 5000));
+
+        assertEquals(1, meterRegistry.get("user.stream.delay").timer().count());
+        assertTrue(meterRegistry.get("user.stream.delay").timer().max(TimeUnit.MILLISECONDS) >= 5000);
+    }
+
+    @Test
+    @DisplayName("then a single record is handled without looking up the consumer group")
+    void testSingleRecordWithoutGroupLookup() {
+        ObjectRecord<String, UpdateEidMessage> record = record("1-0", UUID.randomUUID(), "MinID", 1000);
+
+        consumer.onMessage(record);
+
+        verify(streamOperations, never()).groups(any());
+        verify(streamOperations).acknowledge(UPDATE_LAST_LOGIN_GROUP, record);
+        verify(streamOperations, never()).delete(any(), any(RecordId[].class));
+    }
+
+    private static ObjectRecord<String, UpdateEidMessage> record(String id, UUID userId, String eidName) {
+        return record(id, userId, eidName, System.currentTimeMillis());
+    }
+
+    private static ObjectRecord<String, UpdateEidMessage> record(String id, UUID userId, String eidName, long loginTime) {
+        return StreamRecords.newRecord()
+                .in(UPDATE_LAST_LOGIN_STREAM)
+                .withId(RecordId.of(id))
+                .ofObject(new UpdateEidMessage(userId, loginTime, eidName));
+    }
+
+}
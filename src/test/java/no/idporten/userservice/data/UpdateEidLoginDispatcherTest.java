@@ -0,0 +1,120 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.data.message.UpdateEidMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.stream.ObjectRecord;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When dispatching login updates to virtual threads")
+class UpdateEidLoginDispatcherTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final UpdateEidLoginMessagesConsumer messagesConsumer = mock(UpdateEidLoginMessagesConsumer.class);
+    private final List<String> handled = new CopyOnWriteArrayList<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private UpdateEidLoginDispatcher dispatcher;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        dispatcher.close();
+    }
+
+    /**
+     * Records with an id ending in -0 block until released.
+     */
+    private void blockFirstRecords(CountDownLatch started) {
+        doAnswer(invocation -> {
+            ObjectRecord<String, UpdateEidMessage> record = invocation.getArgument(0);
+            if (record.getId().getValue().endsWith("-0")) {
+                started.countDown();
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+            }
+            handled.add(record.getId().getValue());
+            return null;
+        }).when(messagesConsumer).onMessage(any());
+    }
+
+    @Test
+    @DisplayName("then records of the same user are handled in order, while other users are not held back")
+    void testOrderPerUser() throws Exception {
+        dispatcher = new UpdateEidLoginDispatcher(messagesConsumer, 4, meterRegistry);
+        CountDownLatch started = new CountDownLatch(1);
+        blockFirstRecords(started);
+        UUID user = UUID.randomUUID();
+
+        dispatcher.onMessage(record("1-0", user));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        dispatcher.onMessage(record("2-1", user));
+        dispatcher.onMessage(record("3-1", UUID.randomUUID()));
+
+        awaitHandled(1);
+        assertEquals(List.of("3-1"), handled);
+
+        release.countDown();
+        awaitHandled(3);
+        assertEquals(List.of("3-1", "1-0", "2-1"), handled);
+    }
+
+    @Test
+    @DisplayName("then the container waits while max-in-flight records are being handled")
+    void testBackpressure() throws Exception {
+        dispatcher = new UpdateEidLoginDispatcher(messagesConsumer, 2, meterRegistry);
+        CountDownLatch started = new CountDownLatch(2);
+        blockFirstRecords(started);
+        dispatcher.onMessage(record("1-0", UUID.randomUUID()));
+        dispatcher.onMessage(record("2-0", UUID.randomUUID()));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(2.0, meterRegistry.get("user.stream.dispatcher.in-flight").gauge().value());
+
+        Thread container = Thread.ofVirtual().start(() -> dispatcher.onMessage(record("3-1", UUID.randomUUID())));
+        container.join(200);
+        assertTrue(container.isAlive());
+
+        release.countDown();
+        container.join(5000);
+        assertFalse(container.isAlive());
+        awaitHandled(3);
+    }
+
+    @Test
+    @DisplayName("then a missing consumer group is recreated when handling a record fails")
+    void testFailure() throws Exception {
+        dispatcher = new UpdateEidLoginDispatcher(messagesConsumer, 2, meterRegistry);
+        RedisSystemException e = new RedisSystemException("NOGROUP", null);
+        doThrow(e).when(messagesConsumer).onMessage(any());
+
+        dispatcher.onMessage(record("1-1", UUID.randomUUID()));
+        dispatcher.close();
+
+        verify(messagesConsumer).recreateConsumerGroupIfMissing(e);
+        assertEquals(0.0, meterRegistry.get("user.stream.dispatcher.in-flight").gauge().value());
+    }
+
+    private void awaitHandled(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (handled.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, handled.size());
+    }
+
+    private static ObjectRecord<String, UpdateEidMessage> record(String id, UUID userId) {
+        return StreamRecords.newRecord().in(UPDATE_LAST_LOGIN_STREAM).withId(id).ofObject(new UpdateEidMessage(userId, 1000, "MinID"));
+    }
+
+}
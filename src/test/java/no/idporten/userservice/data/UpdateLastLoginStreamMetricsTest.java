@@ -0,0 +1,124 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StreamOperations;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When sampling metrics of the update-last-login streams")
+class UpdateLastLoginStreamMetricsTest {
+
+    private static final long NOW = 100_000;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    @SuppressWarnings("unchecked")
+    private final RedisTemplate<String, String> updateEidCache = mock(RedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final StreamOperations<String, Object, Object> streamOperations = mock(StreamOperations.class);
+    private final UpdateLastLoginStreamProperties streamProperties = new UpdateLastLoginStreamProperties();
+    private final UpdateLastLoginStreamMetrics metrics;
+
+    UpdateLastLoginStreamMetricsTest() {
+        when(updateEidCache.opsForStream()).thenReturn(streamOperations);
+        metrics = new UpdateLastLoginStreamMetrics(updateEidCache, streamProperties, meterRegistry,
+                Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC));
+    }
+
+    @Test
+    @DisplayName("then the length, pending records per consumer, oldest pending age and lag are exported")
+    void testSample() {
+        when(streamOperations.size(UPDATE_LAST_LOGIN_STREAM)).thenReturn(42L);
+        when(streamOperations.groups(UPDATE_LAST_LOGIN_STREAM)).thenReturn(groups("95000-0"));
+        when(streamOperations.pending(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP)).thenReturn(new PendingMessagesSummary(
+                UPDATE_LAST_LOGIN_GROUP, 3, Range.closed("90000-0", "95000-0"), Map.of("consumer-a", 2L, "consumer-b", 1L)));
+        when(streamOperations.range(eq(UPDATE_LAST_LOGIN_STREAM), any(), any(Limit.class))).thenReturn(List.of(record("96000-0")));
+
+        metrics.sample();
+
+        assertEquals(42.0, meterRegistry.get("user.stream.length").tag("stream", UPDATE_LAST_LOGIN_STREAM).gauge().value());
+        assertEquals(2.0, meterRegistry.get("user.stream.pending").tag("consumer", "consumer-a").gauge().value());
+        assertEquals(1.0, meterRegistry.get("user.stream.pending").tag("consumer", "consumer-b").gauge().value());
+        assertEquals(10.0, meterRegistry.get("user.stream.pending.oldest").timeGauge().value(TimeUnit.SECONDS));
+        assertEquals(4.0, meterRegistry.get("user.stream.lag").timeGauge().value(TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("then consumers without pending records are removed, and the ages are zero when the group is caught up")
+    void testCaughtUp() {
+        when(streamOperations.groups(UPDATE_LAST_LOGIN_STREAM)).thenReturn(groups("95000-0"));
+        when(streamOperations.pending(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP)).thenReturn(new PendingMessagesSummary(
+                UPDATE_LAST_LOGIN_GROUP, 1, Range.closed("90000-0", "90000-0"), Map.of("consumer-a", 1L)));
+        metrics.sample();
+
+        when(streamOperations.pending(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP)).thenReturn(new PendingMessagesSummary(
+                UPDATE_LAST_LOGIN_GROUP, 0, Range.unbounded(), Map.of()));
+        when(streamOperations.range(eq(UPDATE_LAST_LOGIN_STREAM), any(), any(Limit.class))).thenReturn(List.of());
+        metrics.sample();
+
+        assertNull(meterRegistry.find("user.stream.pending").tag("consumer", "consumer-a").gauge());
+        assertEquals(0.0, meterRegistry.get("user.stream.pending.oldest").timeGauge().value(TimeUnit.SECONDS));
+        assertEquals(0.0, meterRegistry.get("user.stream.lag").timeGauge().value(TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("then the backlog is the pending records and the records not delivered yet")
+    void testBacklog() {
+        when(streamOperations.groups(UPDATE_LAST_LOGIN_STREAM)).thenReturn(groups("95000-0", 7L));
+        when(streamOperations.pending(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP)).thenReturn(new PendingMessagesSummary(
+                UPDATE_LAST_LOGIN_GROUP, 2, Range.closed("90000-0", "95000-0"), Map.of("consumer-a", 2L)));
+
+        metrics.sample();
+
+        assertEquals(9.0, meterRegistry.get("user.stream.backlog").tag("stream", UPDATE_LAST_LOGIN_STREAM).gauge().value());
+    }
+
+    @Test
+    @DisplayName("then every partition is sampled even if one fails")
+    void testPartitions() {
+        streamProperties.setPartitions(2);
+        when(streamOperations.size(UPDATE_LAST_LOGIN_STREAM)).thenThrow(new IllegalStateException("Connection reset"));
+        when(streamOperations.size(UPDATE_LAST_LOGIN_STREAM + ":1")).thenReturn(7L);
+        when(streamOperations.groups(UPDATE_LAST_LOGIN_STREAM + ":1")).thenReturn(StreamInfo.XInfoGroups.fromList(List.of()));
+
+        metrics.sample();
+
+        assertEquals(7.0, meterRegistry.get("user.stream.length").tag("stream", UPDATE_LAST_LOGIN_STREAM + ":1").gauge().value());
+    }
+
+    private static StreamInfo.XInfoGroups groups(String lastDeliveredId) {
+        return groups(lastDeliveredId, 0L);
+    }
+
+    private static StreamInfo.XInfoGroups groups(String lastDeliveredId, long lag) {
+        return StreamInfo.XInfoGroups.fromList(List.of(List.of(
+                "name", UPDATE_LAST_LOGIN_GROUP, "consumers", 1L, "pending", 0L, "last-delivered-id", lastDeliveredId, "lag", lag)));
+    }
+
+    private static MapRecord<String, Object, Object> record(String id) {
+        return StreamRecords.newRecord().in(UPDATE_LAST_LOGIN_STREAM).withId(id).ofMap(Map.of("eidName", "MinID"));
+    }
+
+}
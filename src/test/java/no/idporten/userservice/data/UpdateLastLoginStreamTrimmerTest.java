@@ -0,0 +1,107 @@
+package no.idporten.userservice.data;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UpdateLastLoginStreamProperties;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands.MinIdTrimStrategy;
+import org.springframework.data.redis.connection.RedisStreamCommands.TrimOperator;
+import org.springframework.data.redis.connection.RedisStreamCommands.XTrimOptions;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StreamOperations;
+
+import java.util.List;
+import java.util.Map;
+
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_GROUP;
+import static no.idporten.userservice.config.RedisStreamConstants.UPDATE_LAST_LOGIN_STREAM;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When trimming the update-last-login streams")
+class UpdateLastLoginStreamTrimmerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    @SuppressWarnings("unchecked")
+    private final RedisTemplate<String, String> updateEidCache = mock(RedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final StreamOperations<String, Object, Object> streamOperations = mock(StreamOperations.class);
+    private final UpdateLastLoginStreamProperties streamProperties = new UpdateLastLoginStreamProperties();
+    private final UpdateLastLoginStreamTrimmer trimmer;
+
+    UpdateLastLoginStreamTrimmerTest() {
+        when(updateEidCache.opsForStream()).thenReturn(streamOperations);
+        trimmer = new UpdateLastLoginStreamTrimmer(updateEidCache, streamProperties, meterRegistry);
+    }
+
+    @Test
+    @DisplayName("then records older than the last delivered record are trimmed when nothing is pending")
+    void testTrimToLastDelivered() {
+        when(streamOperations.groups(UPDATE_LAST_LOGIN_STREAM)).thenReturn(groups("5-0"));
+        when(streamOperations.pending(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP)).thenReturn(pending(0, null, null));
+        when(streamOperations.trim(eq(UPDATE_LAST_LOGIN_STREAM), any(XTrimOptions.class))).thenReturn(4L);
+
+        trimmer.trim();
+
+        verify(streamOperations).trim(eq(UPDATE_LAST_LOGIN_STREAM), argThat(options -> trimsBefore(options, "5-0")));
+        assertEquals(4.0, meterRegistry.get("user.stream.trimmed").counter().count());
+    }
+
+    @Test
+    @DisplayName("then records still pending are kept")
+    void testTrimToOldestPending() {
+        when(streamOperations.groups(UPDATE_LAST_LOGIN_STREAM)).thenReturn(groups("5-0"));
+        when(streamOperations.pending(UPDATE_LAST_LOGIN_STREAM, UPDATE_LAST_LOGIN_GROUP)).thenReturn(pending(2, "3-1", "4-0"));
+
+        trimmer.trim();
+
+        verify(streamOperations).trim(eq(UPDATE_LAST_LOGIN_STREAM), argThat(options -> trimsBefore(options, "3-1")));
+    }
+
+    @Test
+    @DisplayName("then nothing is trimmed without the consumer group")
+    void testNoGroup() {
+        when(streamOperations.groups(UPDATE_LAST_LOGIN_STREAM)).thenReturn(StreamInfo.XInfoGroups.fromList(List.of()));
+
+        trimmer.trim();
+
+        verify(streamOperations, never()).trim(any(), any(XTrimOptions.class));
+    }
+
+    @Test
+    @DisplayName("then every partition is trimmed even if one fails")
+    void testPartitions() {
+        streamProperties.setPartitions(2);
+        when(streamOperations.groups(UPDATE_LAST_LOGIN_STREAM)).thenThrow(new IllegalStateException("ERR no such key"));
+        when(streamOperations.groups(UPDATE_LAST_LOGIN_STREAM + ":1")).thenReturn(groups("5-0"));
+        when(streamOperations.pending(UPDATE_LAST_LOGIN_STREAM + ":1", UPDATE_LAST_LOGIN_GROUP)).thenReturn(pending(0, null, null));
+
+        trimmer.trim();
+
+        verify(streamOperations).trim(eq(UPDATE_LAST_LOGIN_STREAM + ":1"), any(XTrimOptions.class));
+    }
+
+    private static StreamInfo.XInfoGroups groups(String lastDeliveredId) {
+        return StreamInfo.XInfoGroups.fromList(List.of(List.of(
+                "name", UPDATE_LAST_LOGIN_GROUP, "consumers", 1L, "pending", 0L, "last-delivered-id", lastDeliveredId, "lag", 0L)));
+    }
+
+    private static PendingMessagesSummary pending(long total, String min, String max) {
+        Range<String> range = total == 0 ? Range.unbounded() : Range.closed(min, max);
+        return new PendingMessagesSummary(UPDATE_LAST_LOGIN_GROUP, total, range, Map.of());
+    }
+
+    private static boolean trimsBefore(XTrimOptions options, String minId) {
+        return options.getTrimOptions().getTrimStrategy() instanceof MinIdTrimStrategy strategy
+                && strategy.threshold().equals(RecordId.of(minId))
+                && options.getTrimOptions().getTrimOperator() == TrimOperator.APPROXIMATE;
+    }
+
+}
@@ -280,38 +280,21 @@ public class UserRepositoryTest extends BaseRedisTest {
             assertNotNull(savedNewUser);
             assertTrue(savedNewUser.isActive());
             assertNotNull(savedNewUser.getPreviousUser());
-            assertNull(savedNewUser.getNextUser());
             oldUser.setActive(false);
             assertFalse(userRepository.save(oldUser).isActive());
         }
 
         @Test
-        @DisplayName("then when a new user is created as active and the old user is set to inactive and the new user has a relation to the old user (previousUser)")
-        void testNextUser() {
-            String personIdentifier = "12345602";
-            UserEntity testUser = UserEntity.builder()
-                    .personIdentifier(personIdentifier)
-                    .active(Boolean.TRUE)
-                    .build();
-
-            userRepository.save(testUser);
-            Optional<UserEntity> byUuid = userRepository.findByPersonIdentifier(personIdentifier);
-            assertTrue(byUuid.isPresent());
-            UserEntity oldUser = byUuid.get();
-
-            String newPid = "25";
-            UserEntity newPidUser = UserEntity.builder()
-                    .personIdentifier(newPid)
-                    .active(Boolean.TRUE)
-                    .nextUser(oldUser)
-                    .build();
-            UserEntity savedNewUser = userRepository.save(newPidUser);
-            assertNotNull(savedNewUser);
-            assertTrue(savedNewUser.isActive());
-            assertNull(savedNewUser.getPreviousUser());
-            assertNotNull(savedNewUser.getNextUser());
-            oldUser.setActive(false);
-            assertFalse(userRepository.save(oldUser).isActive());
+        @DisplayName("then the history of a user follows the previous users newest first, up to max depth")
+        void testHistory() {
+            UserEntity first = userRepository.save(UserEntity.builder().personIdentifier("12345602").active(false).build());
+            UserEntity second = userRepository.save(UserEntity.builder().personIdentifier("12345603").active(false).previousUser(first).build());
+            UserEntity third = userRepository.save(UserEntity.builder().personIdentifier("12345604").active(true).previousUser(second).build());
+
+            assertEquals(List.of(third.getUuid().toString(), second.getUuid().toString(), first.getUuid().toString()),
+                    userRepository.findHistory(third.getUuid().toString(), 10));
+            assertEquals(List.of(third.getUuid().toString(), second.getUuid().toString()),
+                    userRepository.findHistory(third.getUuid().toString(), 1));
         }
     }
 }
\ No newline at end of file
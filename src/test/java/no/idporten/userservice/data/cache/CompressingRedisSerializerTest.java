@@ -0,0 +1,59 @@
+package no.idporten.userservice.data.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When compressing cached values")
+class CompressingRedisSerializerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CompressingRedisSerializer<String> serializer = new CompressingRedisSerializer<>(RedisSerializer.string(), true, 100, meterRegistry);
+
+    @Test
+    @DisplayName("then values above the threshold are compressed and read back")
+    void testCompressed() {
+        String value = "{\"helpDeskCaseReferences\":[" + "\"123456\",".repeat(100) + "\"1\"]}";
+
+        byte[] bytes = serializer.serialize(value);
+
+        assertEquals(CompressingRedisSerializer.HEADER, bytes[0]);
+        assertTrue(bytes.length < value.length() / 4);
+        assertEquals(value, serializer.deserialize(bytes));
+        assertEquals(value.length() - bytes.length, meterRegistry.get("user.cache.compression.saved").counter().count());
+        assertEquals(1, meterRegistry.get("user.cache.compression").tag("operation", "compress").timer().count());
+    }
+
+    @Test
+    @DisplayName("then values below the threshold are written as they are")
+    void testBelowThreshold() {
+        String value = "{\"pid\":\"12345678910\"}";
+
+        assertArrayEquals(RedisSerializer.string().serialize(value), serializer.serialize(value));
+    }
+
+    @Test
+    @DisplayName("then compressed values are read when compression is turned off")
+    void testReadWhenDisabled() {
+        CompressingRedisSerializer<String> disabled = new CompressingRedisSerializer<>(RedisSerializer.string(), false, 100, meterRegistry);
+        String value = "x".repeat(1000);
+
+        assertEquals(1000, disabled.serialize(value).length);
+        assertEquals(value, disabled.deserialize(serializer.serialize(value)));
+    }
+
+    @Test
+    @DisplayName("then a truncated value fails")
+    void testTruncated() {
+        byte[] bytes = serializer.serialize("x".repeat(1000));
+
+        assertThrows(SerializationException.class, () -> serializer.deserialize(Arrays.copyOf(bytes, bytes.length - 2)));
+    }
+
+}
@@ -0,0 +1,130 @@
+package no.idporten.userservice.data.cache;
+
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.IDPortenUser;
+import no.idporten.userservice.data.Login;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.JacksonJsonRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When serializing cached users")
+class IDPortenUserRedisSerializerTest {
+
+    private final IDPortenUserRedisSerializer binarySerializer = new IDPortenUserRedisSerializer(UserCacheProperties.Serializer.BINARY);
+    private final IDPortenUserRedisSerializer jsonSerializer = new IDPortenUserRedisSerializer(UserCacheProperties.Serializer.JSON);
+    private final JacksonJsonRedisSerializer<IDPortenUser> legacySerializer = new JacksonJsonRedisSerializer<>(IDPortenUser.class);
+
+    @Test
+    @DisplayName("then all fields survive a binary round trip")
+    void testBinaryRoundTrip() {
+        IDPortenUser user = user();
+
+        byte[] bytes = binarySerializer.serialize(user);
+        IDPortenUser deserialized = binarySerializer.deserialize(bytes);
+
+        assertEquals(IDPortenUserRedisSerializer.MAGIC, bytes[0]);
+        assertAllFieldsEqual(user, deserialized);
+        assertAllFieldsEqual(user.getPreviousUser(), deserialized.getPreviousUser());
+    }
+
+    @Test
+    @DisplayName("then a user with only a pid survives a binary round trip")
+    void testMinimalUser() {
+        IDPortenUser user = new IDPortenUser();
+        user.setPid("12345678910");
+
+        IDPortenUser deserialized = binarySerializer.deserialize(binarySerializer.serialize(user));
+
+        assertAllFieldsEqual(user, deserialized);
+    }
+
+    @Test
+    @DisplayName("then the binary format is much smaller than json")
+    void testSmallerThanJson() {
+        IDPortenUser user = user();
+
+        assertTrue(binarySerializer.serialize(user).length * 2 < legacySerializer.serialize(user).length);
+    }
+
+    @Test
+    @DisplayName("then json entries already in the cache are read by the binary serializer")
+    void testReadsLegacyJson() {
+        IDPortenUser user = user();
+
+        assertAllFieldsEqual(user, binarySerializer.deserialize(legacySerializer.serialize(user)));
+    }
+
+    @Test
+    @DisplayName("then binary entries are read after switching back to json")
+    void testJsonReadsBinary() {
+        IDPortenUser user = user();
+
+        byte[] bytes = binarySerializer.serialize(user);
+
+        assertEquals('{', jsonSerializer.serialize(user)[0]);
+        assertAllFieldsEqual(user, jsonSerializer.deserialize(bytes));
+    }
+
+    @Test
+    @DisplayName("then entries written in an unknown version are treated as missing")
+    void testUnknownVersion() {
+        byte[] bytes = binarySerializer.serialize(user());
+        bytes[1] = IDPortenUserRedisSerializer.VERSION + 1;
+
+        assertNull(binarySerializer.deserialize(bytes));
+    }
+
+    @Test
+    @DisplayName("then a truncated entry fails")
+    void testTruncated() {
+        byte[] bytes = binarySerializer.serialize(user());
+
+        assertThrows(SerializationException.class, () -> binarySerializer.deserialize(Arrays.copyOf(bytes, bytes.length - 3)));
+    }
+
+    private void assertAllFieldsEqual(IDPortenUser expected, IDPortenUser actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getPid(), actual.getPid());
+        assertEquals(expected.getCreated(), actual.getCreated());
+        assertEquals(expected.getLastUpdated(), actual.getLastUpdated());
+        assertEquals(expected.isActive(), actual.isActive());
+        assertEquals(expected.getClosedCode(), actual.getClosedCode());
+        assertEquals(expected.getClosedCodeLastUpdated(), actual.getClosedCodeLastUpdated());
+        assertEquals(expected.getHelpDeskCaseReferences(), actual.getHelpDeskCaseReferences());
+        assertEquals(expected.getLogins(), actual.getLogins());
+        assertEquals(expected.getPreviousUser() == null, actual.getPreviousUser() == null);
+    }
+
+    private IDPortenUser user() {
+        Instant now = Instant.ofEpochMilli(System.currentTimeMillis());
+        IDPortenUser previousUser = IDPortenUser.builder()
+                .id(UUID.randomUUID())
+                .pid("12345678911")
+                .created(now.minusSeconds(3600))
+                .lastUpdated(now.minusSeconds(60))
+                .active(false)
+                .closedCode("FØDSELSNUMMER_ENDRET")
+                .closedCodeLastUpdated(now.minusSeconds(60))
+                .build();
+        return IDPortenUser.builder()
+                .id(UUID.randomUUID())
+                .pid("12345678912")
+                .created(now.minusSeconds(60))
+                .lastUpdated(now)
+                .active(true)
+                .previousUser(previousUser)
+                .helpDeskCaseReferences(List.of("123", "456"))
+                .login(Login.builder().id(1L).eidName("MinID").firstLogin(now.minusSeconds(60)).lastLogin(now).build())
+                .login(Login.builder().id(2L).eidName("JunitID").firstLogin(now.minusSeconds(30)).lastLogin(now).build())
+                .build();
+    }
+
+}
@@ -0,0 +1,75 @@
+package no.idporten.userservice.data.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UserCacheProperties;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When using the negative user cache")
+class NegativeUserCacheTest {
+
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+    private final NegativeUserCache negativeCache = new NegativeUserCache(redisTemplate, new UserCacheProperties(), new SimpleMeterRegistry());
+
+    NegativeUserCacheTest() {
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+    }
+
+    @Test
+    @DisplayName("then a user marked absent is absent")
+    void testAbsent() {
+        when(valueOperations.get("absent:12345678910")).thenReturn(NegativeUserCache.ABSENT);
+
+        assertTrue(negativeCache.isAbsent("12345678910"));
+    }
+
+    @Test
+    @DisplayName("then a user marked present is not absent")
+    void testPresent() {
+        when(valueOperations.get("absent:12345678911")).thenReturn(NegativeUserCache.PRESENT);
+
+        assertFalse(negativeCache.isAbsent("12345678911"));
+    }
+
+    @Test
+    @DisplayName("then absent never overwrites a marker, while present always does")
+    void testMarkers() {
+        negativeCache.markAbsent("12345678912");
+        negativeCache.markPresent("12345678912");
+
+        verify(valueOperations).setIfAbsent("absent:12345678912", NegativeUserCache.ABSENT, Duration.ofSeconds(30));
+        verify(valueOperations).set("absent:12345678912", NegativeUserCache.PRESENT, Duration.ofSeconds(30));
+    }
+
+    @Test
+    @DisplayName("then users are not absent when Redis fails")
+    void testRedisFailure() {
+        when(valueOperations.get("absent:12345678913")).thenThrow(new RedisConnectionFailureException("down"));
+
+        assertFalse(negativeCache.isAbsent("12345678913"));
+    }
+
+    @Test
+    @DisplayName("then Redis is not used when disabled")
+    void testDisabled() {
+        UserCacheProperties properties = new UserCacheProperties();
+        properties.getNegativeCache().setEnabled(false);
+        NegativeUserCache disabled = new NegativeUserCache(redisTemplate, properties, new SimpleMeterRegistry());
+
+        disabled.markAbsent("12345678914");
+
+        assertFalse(disabled.isAbsent("12345678914"));
+        verifyNoInteractions(valueOperations);
+    }
+
+}
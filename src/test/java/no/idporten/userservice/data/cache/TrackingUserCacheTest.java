@@ -0,0 +1,200 @@
+package no.idporten.userservice.data.cache;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandTimeoutException;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.StatefulRedisConnectionImpl;
+import io.lettuce.core.TrackingArgs;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.push.PushMessage;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.RedisCodec;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.IDPortenUser;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JacksonJsonRedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When using client side caching of users")
+class TrackingUserCacheTest {
+
+    private final JacksonJsonRedisSerializer<IDPortenUser> serializer = new JacksonJsonRedisSerializer<>(IDPortenUser.class);
+    @SuppressWarnings("unchecked")
+    private final StatefulRedisConnectionImpl<String, byte[]> connection = mock(StatefulRedisConnectionImpl.class);
+    @SuppressWarnings("unchecked")
+    private final RedisCommands<String, byte[]> commands = mock(RedisCommands.class);
+    private final TrackingUserCache trackingCache = trackingCache(true);
+
+    @Test
+    @DisplayName("then client tracking is turned on for the connection")
+    void testTrackingTurnedOn() {
+        assertTrue(trackingCache.isEnabled());
+        verify(commands).clientTracking(any(TrackingArgs.class));
+    }
+
+    @Test
+    @DisplayName("then a user read once is served from the pod until Redis invalidates it")
+    void testServedUntilInvalidated() {
+        IDPortenUser user = user("12345678910");
+        when(commands.get(user.getPid())).thenReturn(serializer.serialize(user));
+
+        assertEquals(user, trackingCache.getUser(user.getPid()));
+        assertEquals(user, trackingCache.getUser(user.getPid()));
+        verify(commands, times(1)).get(user.getPid());
+
+        trackingCache.onPushMessage(invalidate(user.getPid()));
+        trackingCache.getUser(user.getPid());
+        verify(commands, times(2)).get(user.getPid());
+    }
+
+    @Test
+    @DisplayName("then a pid is served from the pod until Redis invalidates it")
+    void testPidServedUntilInvalidated() {
+        UUID uuid = UUID.randomUUID();
+        when(commands.get(uuid.toString())).thenReturn("12345678911".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("12345678911", trackingCache.getPid(uuid));
+        assertEquals("12345678911", trackingCache.getPid(uuid));
+        verify(commands, times(1)).get(uuid.toString());
+
+        trackingCache.onPushMessage(invalidate(uuid.toString()));
+        trackingCache.getPid(uuid);
+        verify(commands, times(2)).get(uuid.toString());
+    }
+
+    @Test
+    @DisplayName("then a flush of the Redis database empties the pod")
+    void testFlushAll() {
+        IDPortenUser user = user("12345678912");
+        when(commands.get(user.getPid())).thenReturn(serializer.serialize(user));
+        trackingCache.getUser(user.getPid());
+
+        trackingCache.onPushMessage(invalidate((List<?>) null));
+        trackingCache.getUser(user.getPid());
+
+        verify(commands, times(2)).get(user.getPid());
+    }
+
+    @Test
+    @DisplayName("then a user invalidated while it was being read is not kept")
+    void testInvalidatedWhileReading() {
+        IDPortenUser user = user("12345678913");
+        when(commands.get(user.getPid())).thenAnswer(invocation -> {
+            trackingCache.onPushMessage(invalidate(user.getPid()));
+            return serializer.serialize(user);
+        });
+
+        trackingCache.getUser(user.getPid());
+        trackingCache.getUser(user.getPid());
+
+        verify(commands, times(2)).get(user.getPid());
+    }
+
+    @Test
+    @DisplayName("then a user is kept even if another user was invalidated while it was being read")
+    void testOtherUserInvalidatedWhileReading() {
+        IDPortenUser user = user("12345678917");
+        when(commands.get(user.getPid())).thenAnswer(invocation -> {
+            trackingCache.onPushMessage(invalidate("12345678918"));
+            return serializer.serialize(user);
+        });
+
+        trackingCache.getUser(user.getPid());
+        trackingCache.getUser(user.getPid());
+
+        verify(commands, times(1)).get(user.getPid());
+    }
+
+    @Test
+    @DisplayName("then users are read directly from Redis while the tracking connection is down")
+    @SuppressWarnings("unchecked")
+    void testBypassedWhileDisconnected() {
+        IDPortenUser user = user("12345678914");
+        when(commands.get(user.getPid())).thenReturn(serializer.serialize(user));
+        RedisAsyncCommands<String, byte[]> asyncCommands = mock(RedisAsyncCommands.class);
+        RedisFuture<String> trackingTurnedOn = mock(RedisFuture.class);
+        AtomicReference<BiConsumer<String, Throwable>> onTrackingTurnedOn = new AtomicReference<>();
+        when(connection.async()).thenReturn(asyncCommands);
+        when(asyncCommands.clientTracking(any(TrackingArgs.class))).thenReturn(trackingTurnedOn);
+        when(trackingTurnedOn.whenComplete(any())).thenAnswer(invocation -> {
+            onTrackingTurnedOn.set(invocation.getArgument(0));
+            return trackingTurnedOn;
+        });
+
+        trackingCache.onRedisDisconnected(connection);
+        trackingCache.getUser(user.getPid());
+        trackingCache.onRedisConnected(connection, null);
+        trackingCache.getUser(user.getPid());
+        verify(commands, times(2)).get(user.getPid());
+
+        onTrackingTurnedOn.get().accept("OK", null);
+        trackingCache.getUser(user.getPid());
+        trackingCache.getUser(user.getPid());
+        verify(commands, times(3)).get(user.getPid());
+    }
+
+    @Test
+    @DisplayName("then Lettuce exceptions are translated like reads through a RedisTemplate")
+    void testExceptionTranslated() {
+        when(commands.get("12345678915")).thenThrow(new RedisCommandTimeoutException("Command timed out"));
+        when(commands.get("12345678916")).thenThrow(new RedisException("Connection closed"));
+
+        assertThrows(QueryTimeoutException.class, () -> trackingCache.getUser("12345678915"));
+        assertThrows(RedisSystemException.class, () -> trackingCache.getUser("12345678916"));
+    }
+
+    @Test
+    @DisplayName("then no connection is opened when disabled")
+    void testDisabled() {
+        TrackingUserCache disabled = trackingCache(false);
+
+        assertFalse(disabled.isEnabled());
+    }
+
+    @SuppressWarnings("unchecked")
+    private TrackingUserCache trackingCache(boolean enabled) {
+        UserCacheProperties properties = new UserCacheProperties();
+        properties.getClientTracking().setEnabled(enabled);
+        LettuceConnectionFactory connectionFactory = mock(LettuceConnectionFactory.class);
+        RedisClient redisClient = mock(RedisClient.class);
+        when(connectionFactory.getRequiredNativeClient()).thenReturn(redisClient);
+        when(redisClient.connect(any(RedisCodec.class))).thenReturn(connection);
+        when(connection.sync()).thenReturn(commands);
+        RedisTemplate<String, IDPortenUser> template = new RedisTemplate<>();
+        template.setValueSerializer(serializer);
+        return new TrackingUserCache(properties, connectionFactory, template, new SimpleMeterRegistry());
+    }
+
+    private PushMessage invalidate(String... keys) {
+        return invalidate(Arrays.asList(keys));
+    }
+
+    private PushMessage invalidate(List<?> keys) {
+        PushMessage message = mock(PushMessage.class);
+        when(message.getType()).thenReturn(TrackingUserCache.INVALIDATE);
+        when(message.getContent(any())).thenReturn(Arrays.asList(TrackingUserCache.INVALIDATE, keys));
+        return message;
+    }
+
+    private IDPortenUser user(String pid) {
+        return IDPortenUser.builder().id(UUID.randomUUID()).pid(pid).active(true).build();
+    }
+
+}
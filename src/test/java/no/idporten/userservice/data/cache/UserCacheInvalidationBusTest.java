@@ -0,0 +1,90 @@
+package no.idporten.userservice.data.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.ConsumerNameProvider;
+import no.idporten.userservice.data.IDPortenUser;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When using the user cache invalidation bus")
+class UserCacheInvalidationBusTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+    private final UserNearCache nearCache = new UserNearCache(new UserCacheProperties(), meterRegistry);
+    private final UserCacheInvalidationBus bus = new UserCacheInvalidationBus(redisTemplate, nearCache, new UserCacheProperties(), meterRegistry);
+
+    @Test
+    @DisplayName("then an invalidation is published with pid and uuid")
+    void testPublish() {
+        UUID uuid = UUID.randomUUID();
+        bus.publish("12345678910", uuid);
+
+        verify(redisTemplate).convertAndSend(UserCacheInvalidationBus.CHANNEL,
+                ConsumerNameProvider.getConsumerName() + "\np:12345678910\nu:" + uuid);
+    }
+
+    @Test
+    @DisplayName("then an invalidation from another pod evicts the user from the near cache")
+    void testReceive() {
+        IDPortenUser user = IDPortenUser.builder().id(UUID.randomUUID()).pid("12345678911").build();
+        nearCache.put(user, nearCache.stamp());
+
+        bus.onMessage(message("other-pod\np:" + user.getPid() + "\nu:" + user.getId()), null);
+
+        assertNull(nearCache.getUser(user.getPid()));
+        assertNull(nearCache.getPid(user.getId()));
+    }
+
+    @Test
+    @DisplayName("then a flush from another pod empties the near cache")
+    void testReceiveFlushAll() {
+        IDPortenUser user = IDPortenUser.builder().id(UUID.randomUUID()).pid("12345678912").build();
+        nearCache.put(user, nearCache.stamp());
+
+        bus.onMessage(message("other-pod\n*"), null);
+
+        assertNull(nearCache.getUser(user.getPid()));
+    }
+
+    @Test
+    @DisplayName("then the next message after a failed publish tells the other pods to flush")
+    void testFlushAfterFailedPublish() {
+        doThrow(new RedisConnectionFailureException("down")).doReturn(1L).when(redisTemplate).convertAndSend(anyString(), anyString());
+
+        bus.publish("12345678913", null);
+        bus.publish("12345678914", null);
+
+        verify(redisTemplate).convertAndSend(UserCacheInvalidationBus.CHANNEL,
+                ConsumerNameProvider.getConsumerName() + "\n*\np:12345678914");
+    }
+
+    @Test
+    @DisplayName("then the near cache is flushed when the channel is (re)subscribed")
+    void testFlushOnSubscribe() {
+        IDPortenUser user = IDPortenUser.builder().id(UUID.randomUUID()).pid("12345678915").build();
+        nearCache.put(user, nearCache.stamp());
+
+        bus.onChannelSubscribed(UserCacheInvalidationBus.CHANNEL.getBytes(StandardCharsets.UTF_8), 1);
+
+        assertNull(nearCache.getUser(user.getPid()));
+        verify(redisTemplate, never()).convertAndSend(eq(UserCacheInvalidationBus.CHANNEL), anyString());
+    }
+
+    private DefaultMessage message(String body) {
+        return new DefaultMessage(UserCacheInvalidationBus.CHANNEL.getBytes(StandardCharsets.UTF_8), body.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
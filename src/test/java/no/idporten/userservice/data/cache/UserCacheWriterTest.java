@@ -0,0 +1,194 @@
+package no.idporten.userservice.data.cache;
+
+import io.lettuce.core.cluster.SlotHash;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.IDPortenUser;
+import no.idporten.userservice.data.Login;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisKeyCommands;
+import org.springframework.data.redis.connection.RedisScriptingCommands;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.SetCondition;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When writing users to the cache")
+class UserCacheWriterTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    @SuppressWarnings("unchecked")
+    private final RedisTemplate<String, IDPortenUser> idportenUserCache = mock(RedisTemplate.class);
+    private final RedisConnection connection = mock(RedisConnection.class);
+    private final RedisStringCommands stringCommands = mock(RedisStringCommands.class);
+    private final RedisKeyCommands keyCommands = mock(RedisKeyCommands.class);
+    private final RedisScriptingCommands scriptingCommands = mock(RedisScriptingCommands.class);
+    private final UserNearCache nearCache = new UserNearCache(new UserCacheProperties(), meterRegistry);
+    private final List<Object> results = new ArrayList<>();
+    private final UserCacheWriter cacheWriter;
+
+    UserCacheWriterTest() {
+        doReturn(new StringRedisSerializer()).when(idportenUserCache).getKeySerializer();
+        doReturn(new IDPortenUserRedisSerializer(UserCacheProperties.Serializer.JSON)).when(idportenUserCache).getValueSerializer();
+        when(connection.stringCommands()).thenReturn(stringCommands);
+        when(connection.keyCommands()).thenReturn(keyCommands);
+        when(connection.scriptingCommands()).thenReturn(scriptingCommands);
+        when(idportenUserCache.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> runPipeline(invocation.getArgument(0)));
+        UserCacheInvalidationBus invalidationBus = new UserCacheInvalidationBus(mock(StringRedisTemplate.class), nearCache, new UserCacheProperties(), meterRegistry);
+        cacheWriter = new UserCacheWriter(idportenUserCache, new StringRedisTemplate(), nearCache, invalidationBus, meterRegistry, "365");
+    }
+
+    @Test
+    @DisplayName("then the version is kept in the same Redis Cluster slot as the user")
+    void testVersionKeySlot() {
+        assertEquals(SlotHash.getSlot("12345678910"), SlotHash.getSlot(UserCacheWriter.versionKey("12345678910")));
+    }
+
+    @Test
+    @DisplayName("then the user and the uuid are written in one round trip")
+    void testOneRoundTrip() {
+        IDPortenUser user = user("12345678910", 1000);
+
+        cacheWriter.submit(cacheWriter.setUser(user), cacheWriter.setUuid(user.getId(), user.getPid()));
+
+        verify(idportenUserCache, times(1)).executePipelined(any(RedisCallback.class));
+        verify(scriptingCommands).evalSha(UserCacheWriter.WRITE_USER.getSha1(), ReturnType.INTEGER, 2,
+                bytes(user.getPid()), bytes("version:{" + user.getPid() + "}"), cacheWriter.setUser(user).value(),
+                bytes("1000"), bytes(Long.toString(DAYS.toSeconds(365))), bytes("set"));
+        verify(stringCommands).set(bytes(user.getId().toString()), bytes(user.getPid()), SetCondition.upsert(), Expiration.from(365, DAYS));
+    }
+
+    @Test
+    @DisplayName("then the version is the newest change in the user")
+    void testVersion() {
+        IDPortenUser user = user("12345678911", 1000);
+        user.setClosedCodeLastUpdated(Instant.ofEpochMilli(2000));
+        user.setLogins(List.of(Login.builder().eidName("MinID").lastLogin(Instant.ofEpochMilli(3000)).build()));
+
+        assertEquals(3000, UserCacheWriter.versionOf(user));
+    }
+
+    @Test
+    @DisplayName("then writes queued while a round trip is in flight are coalesced into the newest per key")
+    void testCoalesced() {
+        IDPortenUser user = user("12345678912", 1000);
+        IDPortenUser updatedUser = user("12345678912", 2000);
+        IDPortenUser olderUser = user("12345678912", 500);
+        when(idportenUserCache.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            // submitted by other threads while this round trip is in flight
+            cacheWriter.submit(cacheWriter.setUser(user));
+            cacheWriter.submit(cacheWriter.setUser(updatedUser));
+            cacheWriter.submit(cacheWriter.setUser(olderUser));
+            cacheWriter.submit(cacheWriter.setUserIfAbsent(user));
+            return runPipeline(invocation.getArgument(0));
+        }).thenAnswer(invocation -> runPipeline(invocation.getArgument(0)));
+
+        cacheWriter.submit(cacheWriter.setUser(user("12345678913", 1000)));
+
+        verify(idportenUserCache, times(2)).executePipelined(any(RedisCallback.class));
+        verify(scriptingCommands, times(1)).evalSha(eq(UserCacheWriter.WRITE_USER.getSha1()), eq(ReturnType.INTEGER), eq(2),
+                eq(bytes(user.getPid())), any(), any(), eq(bytes("2000")), any(), any());
+        assertEquals(3.0, meterRegistry.get("user.cache.write.coalesced").counter().count());
+    }
+
+    @Test
+    @DisplayName("then the near cache is not invalidated when Redis drops a stale write")
+    void testStaleWrite() {
+        IDPortenUser user = user("12345678914", 1000);
+        nearCache.put(user, nearCache.stamp());
+        when(scriptingCommands.evalSha(any(String.class), any(), anyInt(), any(byte[][].class))).thenAnswer(invocation -> {
+            results.add(0L);
+            return null;
+        });
+
+        cacheWriter.submit(cacheWriter.setUser(user));
+
+        assertNotNull(nearCache.getUser(user.getPid()));
+        assertEquals(1.0, meterRegistry.get("user.cache.write.stale").counter().count());
+    }
+
+    @Test
+    @DisplayName("then the near cache is invalidated after changes but not after fill-ins")
+    void testInvalidatesNearCache() {
+        IDPortenUser user = user("12345678915", 1000);
+        nearCache.put(user, nearCache.stamp());
+
+        cacheWriter.submit(cacheWriter.setUserIfAbsent(user));
+        assertNotNull(nearCache.getUser(user.getPid()));
+
+        cacheWriter.submit(cacheWriter.deleteUser(user.getPid()), cacheWriter.deleteUuid(user.getId()));
+        assertNull(nearCache.getUser(user.getPid()));
+        assertNull(nearCache.getPid(user.getId()));
+        verify(scriptingCommands).evalSha(eq(UserCacheWriter.WRITE_USER.getSha1()), eq(ReturnType.INTEGER), eq(2),
+                eq(bytes(user.getPid())), any(), any(), any(), eq(bytes("3600")), eq(bytes("del")));
+        verify(keyCommands).del(bytes(user.getId().toString()));
+    }
+
+    @Test
+    @DisplayName("then the script is loaded again when Redis has lost it")
+    void testScriptReloaded() {
+        when(idportenUserCache.executePipelined(any(RedisCallback.class)))
+                .thenThrow(new RedisSystemException("NOSCRIPT No matching script", null))
+                .thenAnswer(invocation -> runPipeline(invocation.getArgument(0)));
+
+        cacheWriter.submit(cacheWriter.setUser(user("12345678916", 1000)));
+
+        verify(idportenUserCache, times(2)).execute(any(RedisCallback.class));
+        verify(idportenUserCache, times(2)).executePipelined(any(RedisCallback.class));
+        assertEquals(0.0, meterRegistry.get("user.cache.write.errors").counter().count());
+    }
+
+    @Test
+    @DisplayName("then a failed write is counted and the near cache still invalidated")
+    void testFailedWrite() {
+        IDPortenUser user = user("12345678917", 1000);
+        nearCache.put(user, nearCache.stamp());
+        when(idportenUserCache.executePipelined(any(RedisCallback.class))).thenThrow(new RedisConnectionFailureException("down"));
+
+        cacheWriter.submit(cacheWriter.setUser(user));
+
+        assertNull(nearCache.getUser(user.getPid()));
+        assertEquals(1.0, meterRegistry.get("user.cache.write.errors").counter().count());
+    }
+
+    private List<Object> runPipeline(RedisCallback<?> callback) {
+        results.clear();
+        callback.doInRedis(connection);
+        List<Object> pipelined = new ArrayList<>(results);
+        // commands not answered explicitly succeed
+        while (pipelined.size() < 2) {
+            pipelined.add(1L);
+        }
+        return pipelined;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static IDPortenUser user(String pid, long lastUpdated) {
+        return IDPortenUser.builder().id(UUID.randomUUID()).pid(pid).active(true).lastUpdated(Instant.ofEpochMilli(lastUpdated)).build();
+    }
+
+}
@@ -0,0 +1,115 @@
+package no.idporten.userservice.data.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.IDPortenUser;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@DisplayName("When loading users missing in the cache")
+class UserLoadCoalescerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+
+    @Test
+    @DisplayName("then concurrent loads of the same user share one database load")
+    void testCoalesced() throws Exception {
+        UserLoadCoalescer coalescer = new UserLoadCoalescer(redisTemplate, new UserCacheProperties(), meterRegistry);
+        IDPortenUser user = IDPortenUser.builder().id(UUID.randomUUID()).pid("12345678910").build();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<IDPortenUser> loader = () -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            awaitQuietly(release);
+            return user;
+        };
+
+        CompletableFuture<IDPortenUser> leader = CompletableFuture.supplyAsync(() -> coalescer.load("pid:12345678910", () -> null, loader));
+        assertTrue(loading.await(5, SECONDS));
+        CompletableFuture<IDPortenUser> follower = CompletableFuture.supplyAsync(() -> coalescer.load("pid:12345678910", () -> null, loader));
+        await().atMost(5, SECONDS).until(() -> meterRegistry.get("user.cache.load.coalesced").counter().count() >= 1);
+        release.countDown();
+
+        assertEquals(user, leader.get(5, SECONDS));
+        assertEquals(user, follower.get(5, SECONDS));
+        assertNotSame(leader.get(), follower.get());
+        assertEquals(1, loads.get());
+        verifyNoInteractions(redisTemplate);
+    }
+
+    @Test
+    @DisplayName("then a failed load is not remembered")
+    void testFailedLoad() {
+        UserLoadCoalescer coalescer = new UserLoadCoalescer(redisTemplate, new UserCacheProperties(), meterRegistry);
+
+        assertThrows(IllegalStateException.class, () -> coalescer.load("pid:12345678911", () -> null, () -> {
+            throw new IllegalStateException("database down");
+        }));
+        assertNull(coalescer.load("pid:12345678911", () -> null, () -> null));
+    }
+
+    @Test
+    @DisplayName("then a pod not holding the lock waits for the user to show up in the cache")
+    @SuppressWarnings("unchecked")
+    void testWaitsForOtherPod() {
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.setIfAbsent(anyString(), anyString(), any(Duration.class))).thenReturn(false);
+        when(redisTemplate.hasKey(UserLoadCoalescer.LOCK_PREFIX + "pid:12345678912")).thenReturn(true);
+        IDPortenUser user = IDPortenUser.builder().id(UUID.randomUUID()).pid("12345678912").build();
+        AtomicInteger polls = new AtomicInteger();
+
+        IDPortenUser loaded = coalescer(true).load("pid:12345678912", () -> polls.incrementAndGet() < 3 ? null : user, () -> fail("loaded from database"));
+
+        assertEquals(user, loaded);
+    }
+
+    @Test
+    @DisplayName("then the lock is released when the user does not exist")
+    @SuppressWarnings("unchecked")
+    void testReleasesLockWhenNotFound() {
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.setIfAbsent(anyString(), anyString(), any(Duration.class))).thenReturn(true);
+
+        assertNull(coalescer(true).load("pid:12345678913", () -> null, () -> null));
+
+        verify(redisTemplate).execute(any(), eq(List.of(UserLoadCoalescer.LOCK_PREFIX + "pid:12345678913")), anyString());
+    }
+
+    private UserLoadCoalescer coalescer(boolean distributedLock) {
+        UserCacheProperties properties = new UserCacheProperties();
+        properties.getSingleFlight().setDistributedLock(distributedLock);
+        return new UserLoadCoalescer(redisTemplate, properties, meterRegistry);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package no.idporten.userservice.data.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.idporten.userservice.config.UserCacheProperties;
+import no.idporten.userservice.data.IDPortenUser;
+import no.idporten.userservice.data.Login;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("When using the near cache")
+class UserNearCacheTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final UserNearCache nearCache = new UserNearCache(new UserCacheProperties(), meterRegistry);
+
+    @Test
+    @DisplayName("then a cached user is found by pid and uuid")
+    void testPutAndGet() {
+        IDPortenUser user = user("12345678910");
+        nearCache.put(user, nearCache.stamp());
+
+        assertEquals(user, nearCache.getUser(user.getPid()));
+        assertEquals(user.getPid(), nearCache.getPid(user.getId()));
+    }
+
+    @Test
+    @DisplayName("then changes to a returned user do not leak into the cache")
+    void testReturnsCopies() {
+        IDPortenUser user = user("12345678911");
+        nearCache.put(user, nearCache.stamp());
+
+        IDPortenUser cached = nearCache.getUser(user.getPid());
+        cached.setStatus("SPERRET");
+        cached.getLogins().getFirst().setLastLogin(Instant.EPOCH);
+
+        IDPortenUser cachedAgain = nearCache.getUser(user.getPid());
+        assertTrue(cachedAgain.isActive());
+        assertNotEquals(Instant.EPOCH, cachedAgain.getLogins().getFirst().getLastLogin());
+    }
+
+    @Test
+    @DisplayName("then an invalidated user is removed")
+    void testInvalidate() {
+        IDPortenUser user = user("12345678912");
+        nearCache.put(user, nearCache.stamp());
+
+        nearCache.invalidate(user.getPid(), user.getId());
+
+        assertNull(nearCache.getUser(user.getPid()));
+        assertNull(nearCache.getPid(user.getId()));
+    }
+
+    @Test
+    @DisplayName("then a user read before an invalidation is not cached")
+    void testStalePutIsDropped() {
+        IDPortenUser user = user("12345678913");
+        long stamp = nearCache.stamp();
+        nearCache.invalidate(user.getPid(), user.getId());
+
+        nearCache.put(user, stamp);
+
+        assertNull(nearCache.getUser(user.getPid()));
+    }
+
+    @Test
+    @DisplayName("then invalidating one user does not keep another user read before it out of the cache")
+    void testOtherUserInvalidated() {
+        IDPortenUser user = user("12345678916");
+        // fixed uuids, so the users are not guarded by the same stripe by chance
+        user.setId(new UUID(0, 1));
+        IDPortenUser otherUser = user("12345678917");
+        otherUser.setId(new UUID(0, 2));
+        long stamp = nearCache.stamp();
+        nearCache.invalidate(otherUser.getPid(), otherUser.getId());
+
+        nearCache.put(user, stamp);
+
+        assertEquals(user, nearCache.getUser(user.getPid()));
+        assertEquals(user.getPid(), nearCache.getPid(user.getId()));
+    }
+
+    @Test
+    @DisplayName("then nothing is cached when disabled")
+    void testDisabled() {
+        UserCacheProperties properties = new UserCacheProperties();
+        properties.getNearCache().setEnabled(false);
+        UserNearCache disabledNearCache = new UserNearCache(properties, meterRegistry);
+        IDPortenUser user = user("12345678914");
+
+        disabledNearCache.put(user, disabledNearCache.stamp());
+
+        assertNull(disabledNearCache.getUser(user.getPid()));
+    }
+
+    @Test
+    @DisplayName("then hit and miss metrics are exported")
+    void testMetrics() {
+        IDPortenUser user = user("12345678915");
+        nearCache.getUser(user.getPid());
+        nearCache.put(user, nearCache.stamp());
+        nearCache.getUser(user.getPid());
+
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "idportenUserNearCache").tag("result", "hit").functionCounter().count());
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "idportenUserNearCache").tag("result", "miss").functionCounter().count());
+    }
+
+    private IDPortenUser user(String pid) {
+        return IDPortenUser.builder()
+                .id(UUID.randomUUID())
+                .pid(pid)
+                .active(true)
+                .login(Login.builder().eidName("MinID").firstLogin(Instant.now()).lastLogin(Instant.now()).build())
+                .build();
+    }
+
+}